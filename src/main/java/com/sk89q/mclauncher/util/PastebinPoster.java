@@ -18,14 +18,10 @@
 
 package com.sk89q.mclauncher.util;
 
-import java.io.BufferedReader;
+import com.sk89q.skmcl.util.HttpRequest;
+import com.sk89q.skmcl.util.HttpRequest.Form;
+
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
 
 import static com.sk89q.skmcl.util.SharedLocale._;
 
@@ -55,45 +51,25 @@ public class PastebinPoster {
         
         @Override
         public void run() {
-            HttpURLConnection conn = null;
-            OutputStream out = null; 
-            InputStream in = null;
-            
             try {
-                URL url = new URL("http://pastebin.com/api/api_post.php");
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setConnectTimeout(CONNECT_TIMEOUT);
-                conn.setReadTimeout(READ_TIMEOUT);
-                conn.setRequestMethod("POST");
-                conn.addRequestProperty("Content-type",
-                        "application/x-www-form-urlencoded");
-                conn.setInstanceFollowRedirects(false);
-                conn.setDoOutput(true);
-                out = conn.getOutputStream();
-                
-                out.write(("api_option=paste"
-                        + "&api_dev_key=" + URLEncoder.encode("4867eae74c6990dbdef07c543cf8f805", "utf-8")
-                        + "&api_paste_code=" + URLEncoder.encode(code, "utf-8")
-                        + "&api_paste_private=" + URLEncoder.encode("0", "utf-8")
-                        + "&api_paste_name=" + URLEncoder.encode("", "utf-8")
-                        + "&api_paste_expire_date=" + URLEncoder.encode("1D", "utf-8")
-                        + "&api_paste_format=" + URLEncoder.encode("text", "utf-8")
-                        + "&api_user_key=" + URLEncoder.encode("", "utf-8")).getBytes());
-                out.flush();
-                out.close();
+                HttpRequest request = HttpRequest
+                        .post(HttpRequest.url("http://pastebin.com/api/api_post.php"))
+                        .caller("PastebinPoster")
+                        .connectTimeout(CONNECT_TIMEOUT)
+                        .readTimeout(READ_TIMEOUT)
+                        .bodyForm(Form.form()
+                                .add("api_option", "paste")
+                                .add("api_dev_key", "4867eae74c6990dbdef07c543cf8f805")
+                                .add("api_paste_code", code)
+                                .add("api_paste_private", "0")
+                                .add("api_paste_name", "")
+                                .add("api_paste_expire_date", "1D")
+                                .add("api_paste_format", "text")
+                                .add("api_user_key", ""))
+                        .execute();
                 
-                if (conn.getResponseCode() == 200) {     
-                    in = conn.getInputStream();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                    String line;
-                    StringBuilder response = new StringBuilder();
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                        response.append("\r\n");
-                    }
-                    reader.close();
-                    
-                    String result = response.toString().trim();
+                if (request.getResponseCode() == 200) {
+                    String result = request.returnContent().asString("UTF-8").trim();
                     
                     if (result.matches("^https?://.*")) {
                         callback.handleSuccess(result.trim());
@@ -105,26 +81,13 @@ public class PastebinPoster {
                         callback.handleError(err);
                     }
                 } else {
+                    request.close();
                     callback.handleError(_("pastebin.apiError"));
                 }
             } catch (IOException e) {
                 callback.handleError(e.getMessage());
-            } finally {
-                if (conn != null) {
-                    conn.disconnect();
-                }
-                if (in != null) {
-                    try {
-                        in.close();
-                    } catch (IOException ignored) {
-                    }
-                }
-                if (out != null) {
-                    try {
-                        out.close();
-                    } catch (IOException ignored) {
-                    }
-                }
+            } catch (InterruptedException e) {
+                callback.handleError(e.getMessage());
             }
         }
         
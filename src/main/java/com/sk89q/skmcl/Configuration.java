@@ -18,9 +18,40 @@
 
 package com.sk89q.skmcl;
 
+import lombok.Data;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Data
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Configuration {
 
+    /**
+     * Whether to resolve and connect to the hosts in {@link #warmUpUrls} while
+     * the launcher is idle, so that the first real request is faster.
+     */
+    private boolean warmUpConnections = true;
+    private List<String> warmUpUrls = new ArrayList<String>(Arrays.asList(
+            "https://s3.amazonaws.com/Minecraft.Download/versions/versions.json",
+            "https://authserver.mojang.com/",
+            "http://skins.minecraft.net/"));
+
+    /**
+     * The most bytes per second that downloads may use together, or 0 for no
+     * limit.
+     */
+    private long maxDownloadRate = 0;
+
+    /**
+     * The base URLs to download each class of resource from, in the order to
+     * try them, by the name of the class ("versions", "libraries", or
+     * "assets"). The original server is used last unless it is listed.
+     */
+    private Map<String, List<String>> mirrors = new HashMap<String, List<String>>();
+
 }
@@ -23,6 +23,10 @@ import com.sk89q.skmcl.concurrent.ExecutorWorkerService;
 import com.sk89q.skmcl.launch.LaunchWatcher;
 import com.sk89q.skmcl.launch.LaunchWorker;
 import com.sk89q.skmcl.launch.LaunchedProcess;
+import com.sk89q.skmcl.minecraft.Minecraft;
+import com.sk89q.skmcl.minecraft.model.AWSBucket;
+import com.sk89q.skmcl.minecraft.model.ReleaseList;
+import com.sk89q.skmcl.minecraft.model.ReleaseManifest;
 import com.sk89q.skmcl.profile.Profile;
 import com.sk89q.skmcl.profile.ProfileManager;
 import com.sk89q.skmcl.session.AccountList;
@@ -30,6 +34,13 @@ import com.sk89q.skmcl.session.Identity;
 import com.sk89q.skmcl.swing.LauncherFrame;
 import com.sk89q.skmcl.swing.LoginController;
 import com.sk89q.skmcl.swing.SwingHelper;
+import com.sk89q.skmcl.util.BandwidthLimiter;
+import com.sk89q.skmcl.util.Codecs;
+import com.sk89q.skmcl.util.ConnectionWarmUp;
+import com.sk89q.skmcl.util.DownloadCache;
+import com.sk89q.skmcl.util.HttpCache;
+import com.sk89q.skmcl.util.HttpRequest;
+import com.sk89q.skmcl.util.MirrorList;
 import com.sk89q.skmcl.util.Persistence;
 import com.sk89q.skmcl.util.SharedLocale;
 import com.sk89q.skmcl.util.SimpleLogFormatter;
@@ -40,10 +51,15 @@ import lombok.extern.java.Log;
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.logging.Level;
 
+import static com.sk89q.skmcl.util.LauncherUtils.getSystemProperty;
 import static com.sk89q.skmcl.util.SharedLocale._;
 
 @Log
@@ -61,11 +77,49 @@ public class Launcher {
         this.accounts = Persistence.load(new File(baseDir, "accounts.dat"), AccountList.class);
         this.configuration = Persistence.load(new File(baseDir, "config.json"), Configuration.class);
 
+        HttpCache.setDefault(new HttpCache(new File(profiles.getSharedDir(), "http-cache"),
+                getSystemProperty(HttpCache.class, "maxSize", 1024 * 1024 * 16)));
+        DownloadCache.setDefault(new DownloadCache(new File(profiles.getSharedDir(), "download-cache"),
+                getSystemProperty(DownloadCache.class, "maxSize", 1024L * 1024 * 1024)));
+
+        MirrorList mirrors = new MirrorList(Persistence.load(
+                new File(profiles.getSharedDir(), "mirror-stats.json"), MirrorList.Stats.class));
+        Minecraft.addResourceClasses(mirrors);
+        mirrors.setMirrors(configuration.getMirrors());
+        HttpRequest.addListener(mirrors);
+        MirrorList.setDefault(mirrors);
+
+        if (configuration.getMaxDownloadRate() > 0) {
+            BandwidthLimiter.getGlobal().setRate(configuration.getMaxDownloadRate());
+        }
+
         if (accounts.getSize() > 0) {
             accounts.setSelectedItem(accounts.getElementAt(0));
         }
     }
 
+    /**
+     * Resolve and connect to the hosts that a launch will need in the background,
+     * if enabled in the configuration. This is done once, when the launcher
+     * starts, as each call starts another thread.
+     */
+    public void warmUpConnections() {
+        if (!configuration.isWarmUpConnections()) {
+            return;
+        }
+
+        List<URL> urls = new ArrayList<URL>();
+        for (String url : configuration.getWarmUpUrls()) {
+            try {
+                urls.add(new URL(url));
+            } catch (MalformedURLException e) {
+                log.log(Level.WARNING, "Ignoring invalid warm-up URL: " + url);
+            }
+        }
+
+        new ConnectionWarmUp(urls).start();
+    }
+
     public LauncherFrame showLauncher() {
         if (mainFrame == null) {
             mainFrame = new LauncherFrame(this);
@@ -104,10 +158,12 @@ public class Launcher {
     public static void launchFromStub(boolean portable, File dataDir, String[] args) {
         SimpleLogFormatter.configureGlobalLogger();
         SharedLocale.loadBundle("lang.Launcher", Locale.getDefault());
+        Codecs.prewarm(ReleaseList.class, ReleaseManifest.class, AWSBucket.class);
 
         log.log(Level.INFO,
                 "Using launcher data directory {0}", dataDir.getAbsolutePath());
         final Launcher launcher = new Launcher(dataDir);
+        launcher.warmUpConnections();
 
         SwingUtilities.invokeLater(new Runnable() {
             @Override
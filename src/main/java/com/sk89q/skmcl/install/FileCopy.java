@@ -18,11 +18,10 @@
 
 package com.sk89q.skmcl.install;
 
+import com.sk89q.skmcl.util.BufferPool;
 import lombok.Getter;
 import lombok.NonNull;
-import org.apache.commons.io.IOUtils;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
@@ -49,17 +48,14 @@ public class FileCopy implements Runnable, Callable<File> {
     public File call() throws Exception {
         InputStream is = resource.getInputStream();
         FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
 
         destination.getParentFile().mkdirs();
 
         try {
             fos = new FileOutputStream(destination);
-            bos = new BufferedOutputStream(fos);
-            IOUtils.copy(is, bos);
+            BufferPool.getInstance().copy(is, fos);
         } finally {
             closeQuietly(is);
-            closeQuietly(bos);
             closeQuietly(fos);
         }
 
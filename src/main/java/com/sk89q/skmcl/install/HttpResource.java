@@ -18,6 +18,7 @@
 
 package com.sk89q.skmcl.install;
 
+import com.sk89q.skmcl.util.DownloadPriority;
 import lombok.Getter;
 import lombok.ToString;
 
@@ -30,8 +31,13 @@ public class HttpResource implements Resource {
 
     @Getter
     private final URL url;
+    private InstallerRuntime installer;
     private FileResource resource;
     private String versionId;
+    private String checksum;
+    private long size = -1;
+    private DownloadPriority priority = DownloadPriority.REQUIRED;
+    private boolean cached;
 
     public HttpResource(URL url) {
         this.url = url;
@@ -42,9 +48,30 @@ public class HttpResource implements Resource {
         return this;
     }
 
+    public HttpResource withChecksum(String checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
+    public HttpResource withSize(long size) {
+        this.size = size;
+        return this;
+    }
+
+    public HttpResource withPriority(DownloadPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public HttpResource withCaching(boolean cached) {
+        this.cached = cached;
+        return this;
+    }
+
     @Override
     public void setInstaller(InstallerRuntime installer) {
-        resource = new FileResource(installer.fetch(url, versionId)).deleteOnCleanup();
+        this.installer = installer;
+        resource = new FileResource(installer.fetch(url, versionId, checksum, size, priority, cached));
     }
 
     @Override
@@ -54,7 +81,7 @@ public class HttpResource implements Resource {
 
     @Override
     public void cleanup() {
-        resource.cleanup();
+        installer.release(resource.getFile());
     }
 
 }
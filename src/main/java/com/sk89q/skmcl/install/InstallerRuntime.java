@@ -27,7 +27,9 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -48,6 +50,9 @@ public class InstallerRuntime extends AbstractWorker<InstallerRuntime> {
     private final InstallLog newLog = new InstallLog();
     private final HttpDownloader httpDownloader;
     private final List<Runnable> tasks = new ArrayList<Runnable>();
+    private final Map<File, String> downloads = new HashMap<File, String>();
+    private final Map<File, String> released = new HashMap<File, String>();
+    private int cacheHits;
 
     @Getter
     private File temporaryDir;
@@ -139,13 +144,86 @@ public class InstallerRuntime extends AbstractWorker<InstallerRuntime> {
     }
 
     File fetch(URL url, String hash) {
+        return fetch(url, hash, null, -1);
+    }
+
+    File fetch(URL url, String hash, String checksum, long size) {
+        return fetch(url, hash, checksum, size, DownloadPriority.REQUIRED);
+    }
+
+    File fetch(URL url, String hash, String checksum, long size, DownloadPriority priority) {
+        return fetch(url, hash, checksum, size, priority, false);
+    }
+
+    /**
+     * Fetch a file, or take it from the download cache.
+     *
+     * <p>Only a file that is to be cached and has a checksum is looked up in
+     * and stored in the cache, under its checksum.</p>
+     *
+     * @param url the URL to download from
+     * @param hash a unique ID to identify this URL and version, or null to use URL
+     * @param checksum the MD5 or SHA-1 checksum of the file in hex, or null to not check
+     * @param size the expected size of the file in bytes, or -1 if it is not known
+     * @param priority how soon the file is needed
+     * @param cached true to use the download cache for the file
+     * @return the file, which must be given up with {@link #release(File)}
+     */
+    File fetch(URL url, String hash, String checksum, long size, DownloadPriority priority, boolean cached) {
         if (url.getProtocol().toLowerCase().matches("^https?")) {
-            return httpDownloader.submit(downloadDir, url, hash);
+            String key = cached ? Checksums.normalize(checksum) : null;
+            DownloadCache cache = DownloadCache.getDefault();
+
+            if (cache != null && key != null) {
+                File file = cache.get(key);
+                if (file != null) {
+                    logger.log(Level.FINE, "Using {0} from the download cache", url);
+                    cacheHits++;
+                    return file;
+                }
+            }
+
+            File file = httpDownloader.submit(downloadDir, url, hash, checksum, size, priority);
+            downloads.put(file, key);
+            return file;
         } else {
             throw new IllegalArgumentException("Not sure how to download " + url);
         }
     }
 
+    /**
+     * Give up a hold on a file returned by {@link #fetch(URL, String)}.
+     *
+     * <p>A downloaded file is kept until nothing else that fetched it needs it,
+     * and is then moved into the download cache once all tasks have run, so
+     * that an eviction cannot remove a cached file that a later task reads.</p>
+     *
+     * @param file the file
+     */
+    void release(File file) {
+        if (downloads.containsKey(file) && httpDownloader.release(file)) {
+            released.put(file, downloads.get(file));
+        }
+    }
+
+    /**
+     * Move the downloaded files that are no longer needed into the download
+     * cache, or delete them if they are not to be cached.
+     */
+    private void publishDownloads() {
+        DownloadCache cache = DownloadCache.getDefault();
+
+        for (Map.Entry<File, String> entry : released.entrySet()) {
+            File file = entry.getKey();
+            String key = entry.getValue();
+            if (cache == null || key == null || !cache.put(key, file)) {
+                file.delete();
+            }
+        }
+
+        released.clear();
+    }
+
     @Override
     public InstallerRuntime call() throws Exception {
         WorkUnit step1 = split(0.9),
@@ -153,15 +231,31 @@ public class InstallerRuntime extends AbstractWorker<InstallerRuntime> {
 
         step1.push(0, _("installer.preparingDownload", tasks.size()));
 
-        httpDownloader.addObserver(step1);
-        httpDownloader.call();
+        if (cacheHits > 0) {
+            logger.log(Level.INFO, "{0} of {1} downloads were found in the download cache",
+                    new Object[] { cacheHits, cacheHits + downloads.size() });
+        }
+
+        HttpMetrics metrics = new HttpMetrics();
+        HttpRequest.addListener(metrics);
+
+        try {
+            httpDownloader.addObserver(step1);
+            httpDownloader.call();
 
-        for (Runnable task : tasks) {
-            checkInterrupted();
-            step2.push(0, _("installer.installing", task.toString()));
-            logger.log(Level.INFO, "Executing {0}...", task.toString());
-            task.run();
-            step2.advance();
+            for (Runnable task : tasks) {
+                checkInterrupted();
+                step2.push(0, _("installer.installing", task.toString()));
+                logger.log(Level.INFO, "Executing {0}...", task.toString());
+                task.run();
+                step2.advance();
+            }
+        } finally {
+            publishDownloads();
+            HttpRequest.removeListener(metrics);
+            if (!metrics.isEmpty()) {
+                logger.log(Level.INFO, metrics.toString());
+            }
         }
 
         return this;
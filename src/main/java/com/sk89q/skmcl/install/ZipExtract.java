@@ -18,10 +18,10 @@
 
 package com.sk89q.skmcl.install;
 
+import com.sk89q.skmcl.util.BufferPool;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
 import java.util.List;
@@ -112,16 +112,13 @@ public class ZipExtract implements Runnable {
      */
     private void writeEntry(ZipInputStream zis, File path) throws IOException {
         FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
 
         try {
             path.getParentFile().mkdirs();
 
             fos = new FileOutputStream(path);
-            bos = new BufferedOutputStream(fos);
-            IOUtils.copy(zis, bos);
+            BufferPool.getInstance().copy(zis, fos);
         } finally {
-            closeQuietly(bos);
             closeQuietly(fos);
         }
     }
@@ -25,6 +25,8 @@ import com.sk89q.skmcl.concurrent.WorkUnit;
 import com.sk89q.skmcl.profile.Profile;
 import com.sk89q.skmcl.session.Identity;
 import com.sk89q.skmcl.swing.SwingHelper;
+import com.sk89q.skmcl.util.BandwidthLimiter;
+import com.sk89q.skmcl.util.CircuitBreaker;
 import com.sk89q.skmcl.util.Environment;
 import com.sk89q.skmcl.util.Persistence;
 import lombok.Getter;
@@ -95,6 +97,10 @@ public class LaunchWorker extends AbstractWorker<LaunchedProcess> {
 
     private void update(Instance instance, WorkUnit workUnit)
             throws LauncherException, InterruptedException {
+        // The user is waiting on this update, so it goes ahead of background work
+        BandwidthLimiter.setCurrentJob(
+                BandwidthLimiter.getGlobal().createJob(profile.toString(), true));
+
         try {
             AbstractWorker<?> updater = instance.getUpdater();
             updater.addObserver(workUnit);
@@ -102,7 +108,13 @@ public class LaunchWorker extends AbstractWorker<LaunchedProcess> {
         } catch (InterruptedException e) {
             throw e;
         } catch (Exception e) {
+            // The downloads stopped early because a host is down
+            if (CircuitBreaker.isHostUnavailable(e)) {
+                throw new LauncherException(e, _("updater.hostUnavailable"));
+            }
             throw new LauncherException(e, _("updater.updateFailed"));
+        } finally {
+            BandwidthLimiter.setCurrentJob(null);
         }
     }
 
@@ -18,6 +18,7 @@
 
 package com.sk89q.skmcl.minecraft;
 
+import com.sk89q.skmcl.util.BufferPool;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
@@ -25,7 +26,6 @@ import lombok.ToString;
 import lombok.extern.java.Log;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.IOUtils;
 import org.codehaus.jackson.annotate.JsonIgnore;
 
 import java.io.*;
@@ -178,7 +178,7 @@ public class JarBuilder {
                 if (matches(path) && !existing.contains(path)) {
                     existing.add(path);
                     zos.putNextEntry(new ZipEntry(path));
-                    IOUtils.copy(zis, zos);
+                    BufferPool.getInstance().copy(zis, zos);
                 }
             }
         } finally {
@@ -22,14 +22,17 @@ import com.sk89q.skmcl.application.Application;
 import com.sk89q.skmcl.application.OnlineRequiredException;
 import com.sk89q.skmcl.application.ResolutionException;
 import com.sk89q.skmcl.application.Version;
+import com.sk89q.skmcl.minecraft.model.Library;
 import com.sk89q.skmcl.minecraft.model.ReleaseList;
 import com.sk89q.skmcl.profile.Profile;
 import com.sk89q.skmcl.util.Environment;
 import com.sk89q.skmcl.util.HttpRequest;
+import com.sk89q.skmcl.util.MirrorList;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -40,8 +43,11 @@ import static com.sk89q.skmcl.util.HttpRequest.url;
  */
 public class Minecraft implements Application {
 
-    public static final String VERSIONS_LIST_URL =
-            "https://s3.amazonaws.com/Minecraft.Download/versions/versions.json";
+    public static final String VERSIONS_URL =
+            "https://s3.amazonaws.com/Minecraft.Download/versions/";
+    public static final String VERSIONS_LIST_URL = VERSIONS_URL + "versions.json";
+    public static final String ASSETS_URL =
+            "https://s3.amazonaws.com/MinecraftResources/";
 
     private Version version;
     private transient Profile profile;
@@ -133,11 +139,17 @@ public class Minecraft implements Application {
      */
     private ReleaseList getReleaseList() throws IOException, InterruptedException {
         if (releaseList == null) {
-            ReleaseList list = HttpRequest
-                    .get(url(VERSIONS_LIST_URL))
-                    .execute()
-                    .returnContent()
-                    .asJson(ReleaseList.class);
+            ReleaseList list = MirrorList.execute(url(VERSIONS_LIST_URL), new MirrorList.Request<ReleaseList>() {
+                @Override
+                public ReleaseList execute(URL url) throws IOException, InterruptedException {
+                    return HttpRequest
+                            .get(url)
+                            .caller("Minecraft")
+                            .cached()
+                            .execute()
+                            .asJson(ReleaseList.class);
+                }
+            });
             this.releaseList = list;
             return list;
         }
@@ -145,6 +157,18 @@ public class Minecraft implements Application {
         return releaseList;
     }
 
+    /**
+     * Register the classes of resource that Minecraft is downloaded from, which
+     * are "versions", "libraries", and "assets", with the given mirror list.
+     *
+     * @param mirrors the mirror list
+     */
+    public static void addResourceClasses(MirrorList mirrors) {
+        mirrors.addResourceClass("versions", VERSIONS_URL);
+        mirrors.addResourceClass("libraries", Library.BASE_URL);
+        mirrors.addResourceClass("assets", ASSETS_URL);
+    }
+
     /**
      * Permits only directory {@link File}s to go through.
      */
@@ -50,7 +50,7 @@ public class MinecraftFaceLoader implements Callable<BufferedImage> {
 
     private static BufferedImage readSkin(String username) throws IOException {
         URL url = HttpRequest.url(String.format(SKINS_URL, username));
-        HttpRequest request = HttpRequest.get(url);
+        HttpRequest request = HttpRequest.get(url).caller("MinecraftFaceLoader");
 
         try {
             request.execute();
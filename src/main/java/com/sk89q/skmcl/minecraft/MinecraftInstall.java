@@ -32,6 +32,7 @@ import com.sk89q.skmcl.minecraft.model.ReleaseManifest;
 import com.sk89q.skmcl.profile.Profile;
 import com.sk89q.skmcl.session.Identity;
 import com.sk89q.skmcl.session.Session;
+import com.sk89q.skmcl.util.Codecs;
 import com.sk89q.skmcl.util.Environment;
 import com.sk89q.skmcl.util.Persistence;
 import com.sk89q.skmcl.util.Platform;
@@ -39,7 +40,6 @@ import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
 import org.apache.commons.io.FileUtils;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.File;
 import java.io.IOException;
@@ -149,11 +149,10 @@ public class MinecraftInstall implements Instance {
         }
 
         Identity identity = context.getIdentity();
-        ObjectMapper mapper = new ObjectMapper();
         final File extractDir = createExtractDir();
         JavaProcessBuilder builder = new JavaProcessBuilder();
-        ReleaseManifest manifest = mapper.readValue(
-                getManifestPath(), ReleaseManifest.class);
+        ReleaseManifest manifest = Codecs.getReader(ReleaseManifest.class)
+                .readValue(getManifestPath());
         String clientToken = identity.getClientToken();
 
         // Add libraries to classpath or extract the libraries as necessary
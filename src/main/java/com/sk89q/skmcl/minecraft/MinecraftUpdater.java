@@ -26,9 +26,15 @@ import com.sk89q.skmcl.install.InstallerRuntime;
 import com.sk89q.skmcl.minecraft.model.AWSBucket;
 import com.sk89q.skmcl.minecraft.model.Library;
 import com.sk89q.skmcl.minecraft.model.ReleaseManifest;
+import com.sk89q.skmcl.util.BufferPool;
+import com.sk89q.skmcl.util.Checksums;
+import com.sk89q.skmcl.util.DownloadPriority;
 import com.sk89q.skmcl.util.Environment;
+import com.sk89q.skmcl.util.HttpConnectionPool;
+import com.sk89q.skmcl.util.HttpDownloader;
 import com.sk89q.skmcl.util.HttpRequest;
 import com.sk89q.skmcl.util.LauncherUtils;
+import com.sk89q.skmcl.util.MirrorList;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import java.io.File;
@@ -53,12 +59,13 @@ import static org.apache.commons.io.IOUtils.closeQuietly;
 class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
 
     private static final String VERSION_MANIFEST_URL =
-            "https://s3.amazonaws.com/Minecraft.Download/versions/%s/%s.json";
-    private static final String ASSETS_URL =
-            "https://s3.amazonaws.com/MinecraftResources/";
+            Minecraft.VERSIONS_URL + "%s/%s.json";
+    private static final String ASSETS_URL = Minecraft.ASSETS_URL;
+    private static final String[] OPTIONAL_ASSETS = { "music/", "newmusic/", "records/", "streaming/" };
 
     private static final Logger logger = LauncherUtils.getLogger(MinecraftUpdater.class);
-    private final ExecutorService executor = Executors.newFixedThreadPool(6);
+    private final ExecutorService executor = Executors.newFixedThreadPool(
+            HttpDownloader.getDefaultMaxConcurrency());
     private final MinecraftInstall instance;
     private final Environment environment;
     private final InstallerRuntime installer;
@@ -137,6 +144,11 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
             return instance;
         } finally {
             executor.shutdownNow();
+            if (MirrorList.getDefault() != null) {
+                MirrorList.getDefault().save();
+            }
+            logger.log(Level.INFO, "Connection reuse: {0}", HttpConnectionPool.getInstance());
+            logger.log(Level.INFO, "Buffer reuse: {0}", BufferPool.getInstance());
         }
     }
 
@@ -154,20 +166,32 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
         File contentDir = instance.getProfile().getContentDir();
         File librariesDir = instance.getLibrariesDir();
         File jarPath = instance.getJarPath();
-        File manifestPath = instance.getManifestPath();
+        final File manifestPath = instance.getManifestPath();
 
         // Obtain the release manifest, save it, and parse it
-        ReleaseManifest manifest = HttpRequest
-                .get(getManifestUrl())
-                .execute()
-                .expectResponseCode(200)
-                .returnContent()
-                .saveContent(manifestPath)
-                .asJson(ReleaseManifest.class);
-
-        // If the JAR does not exist, install it
+        ReleaseManifest manifest = MirrorList.execute(getManifestUrl(), new MirrorList.Request<ReleaseManifest>() {
+            @Override
+            public ReleaseManifest execute(URL url) throws IOException, InterruptedException {
+                return HttpRequest
+                        .get(url)
+                        .caller("MinecraftUpdater")
+                        .cached()
+                        .execute()
+                        .expectResponseCode(200)
+                        .returnContent()
+                        .saveContent(manifestPath)
+                        .asJson(ReleaseManifest.class);
+            }
+        });
+
+        // If the JAR does not exist, install it, through the download cache because
+        // each profile keeps its own copy of it
         if (!jarPath.exists()) {
-            installer.copyTo(new HttpResource(manifest.getJarUrl()), jarPath);
+            URL jarUrl = manifest.getJarUrl();
+            installer.copyTo(new HttpResource(jarUrl)
+                    .withChecksum(getChecksum(jarUrl))
+                    .withCaching(true)
+                    .withPriority(DownloadPriority.CRITICAL), jarPath);
         }
 
         // Install all the missing libraries
@@ -177,7 +201,7 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
                 File file = new File(librariesDir, library.getPath(environment));
 
                 if (!file.exists()) {
-                    installer.copyTo(new HttpResource(url), file);
+                    installer.copyTo(new HttpResource(url).withPriority(DownloadPriority.CRITICAL), file);
                 }
 
                 checkInterrupted();
@@ -185,6 +209,29 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
         }
     }
 
+    /**
+     * Get the checksum of a file from the ETag that the server sends for it,
+     * which is the MD5 hash of the file on Amazon S3.
+     *
+     * @param url the URL of the file
+     * @return the checksum, or null if the server did not send one
+     * @throws InterruptedException on interruption
+     */
+    private String getChecksum(URL url) throws InterruptedException {
+        HttpRequest request = HttpRequest.request("HEAD", url).caller("MinecraftUpdater");
+
+        try {
+            try {
+                return Checksums.normalize(request.execute().expectResponseCode(200).getResponseHeader("ETag"));
+            } finally {
+                request.close();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to get the checksum of " + url, e);
+            return null;
+        }
+    }
+
     /**
      * Add shared Minecraft assets to the installer.
      *
@@ -205,11 +252,16 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
             checkInterrupted();
 
             // Obtain the assets manifest
-            AWSBucket bucket = HttpRequest
-                    .get(bucketUrl)
-                    .execute()
-                    .returnContent()
-                    .asXml(AWSBucket.class);
+            AWSBucket bucket = MirrorList.execute(bucketUrl, new MirrorList.Request<AWSBucket>() {
+                @Override
+                public AWSBucket execute(URL url) throws IOException, InterruptedException {
+                    return HttpRequest
+                            .get(url)
+                            .caller("MinecraftUpdater")
+                            .execute()
+                            .asXml(AWSBucket.class);
+                }
+            });
 
             // Install all the missing assets
             for (AWSBucket.Item item : bucket.getContents()) {
@@ -223,10 +275,12 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
                 URL url = item.getUrl(getAssetsUrl());
                 File file = new File(assetsDir, key);
 
-                if (!file.exists() || !getFileETag(file).equals(hash)) {
+                // Only read the file to hash it if its size does not already differ
+                if (!file.exists() || file.length() != item.getSize() || !getFileETag(file).equals(hash)) {
                     logger.log(Level.INFO, "Need to get {0}", key);
                     String id = hash + file.toString();
-                    installer.copyTo(new HttpResource(url).withId(id), file);
+                    installer.copyTo(new HttpResource(url).withId(id).withChecksum(hash).withSize(item.getSize())
+                            .withPriority(getAssetPriority(key)), file);
                 }
 
                 marker = item.getKey();
@@ -239,6 +293,22 @@ class MinecraftUpdater extends AbstractWorker<MinecraftInstall> {
         }
     }
 
+    /**
+     * Get how soon an asset is needed. The game runs without music, so music
+     * is fetched after everything else.
+     *
+     * @param key the key of the asset
+     * @return the priority
+     */
+    protected DownloadPriority getAssetPriority(String key) {
+        for (String prefix : OPTIONAL_ASSETS) {
+            if (key.startsWith(prefix)) {
+                return DownloadPriority.OPTIONAL;
+            }
+        }
+        return DownloadPriority.REQUIRED;
+    }
+
     /**
      * Generate the Etag hash string that is returned by the assets location.
      *
@@ -18,6 +18,7 @@
 
 package com.sk89q.skmcl.minecraft.model;
 
+import com.sk89q.skmcl.minecraft.Minecraft;
 import com.sk89q.skmcl.util.HttpRequest;
 import lombok.Data;
 import org.codehaus.jackson.annotate.JsonIgnore;
@@ -44,7 +45,7 @@ public class ReleaseManifest {
     @JsonIgnore
     public URL getJarUrl() {
         return HttpRequest.url(String.format(
-                "http://s3.amazonaws.com/Minecraft.Download/versions/%s/%s.jar",
+                Minecraft.VERSIONS_URL + "%s/%s.jar",
                 getId(), getId()));
     }
 
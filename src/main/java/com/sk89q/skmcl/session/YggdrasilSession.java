@@ -81,14 +81,15 @@ public class YggdrasilSession implements Session {
         HttpRequest request = HttpRequest
                 .post(AUTH_URL)
                 .bodyJson(payload)
+                .caller("YggdrasilSession")
                 .execute();
 
         if (request.getResponseCode() != 200) {
-            ErrorResponse error = request.returnContent().asJson(ErrorResponse.class);
+            ErrorResponse error = request.asJson(ErrorResponse.class);
             throw new AuthenticationException(error.getErrorMessage(), error.getErrorMessage());
         } else {
             AuthenticateResponse response =
-                    request.returnContent().asJson(AuthenticateResponse.class);
+                    request.asJson(AuthenticateResponse.class);
             accessToken = response.getAccessToken();
             clientToken = response.getClientToken();
             identities = response.getAvailableProfiles();
@@ -105,14 +106,15 @@ public class YggdrasilSession implements Session {
         HttpRequest request = HttpRequest
                 .post(REFRESH_URL)
                 .bodyJson(payload)
+                .caller("YggdrasilSession")
                 .execute();
 
         if (request.getResponseCode() != 200) {
-            ErrorResponse error = request.returnContent().asJson(ErrorResponse.class);
+            ErrorResponse error = request.asJson(ErrorResponse.class);
             throw new AuthenticationException(error.getErrorMessage(), error.getErrorMessage());
         } else {
             AuthenticateResponse response =
-                    request.returnContent().asJson(AuthenticateResponse.class);
+                    request.asJson(AuthenticateResponse.class);
             accessToken = response.getAccessToken();
             clientToken = response.getClientToken();
             identities = response.getAvailableProfiles();
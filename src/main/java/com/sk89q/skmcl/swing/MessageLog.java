@@ -19,6 +19,7 @@
 package com.sk89q.skmcl.swing;
 
 import com.sk89q.mclauncher.util.LimitLinesDocumentListener;
+import com.sk89q.skmcl.util.BufferPool;
 import com.sk89q.skmcl.util.LauncherUtils;
 
 import javax.swing.*;
@@ -216,7 +217,8 @@ public class MessageLog extends JPanel {
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
-                byte[] buffer = new byte[1024];
+                BufferPool pool = BufferPool.getInstance();
+                byte[] buffer = pool.acquire();
                 try {
                     int len;
                     while ((len = in.read(buffer)) != -1) {
@@ -227,6 +229,7 @@ public class MessageLog extends JPanel {
                     }
                 } catch (IOException e) {
                 } finally {
+                    pool.release(buffer);
                     closeQuietly(in);
                     closeQuietly(out);
                 }
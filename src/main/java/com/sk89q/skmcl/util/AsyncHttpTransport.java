@@ -0,0 +1,122 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport that can also carry out requests without blocking the calling
+ * thread, delivering the response to a callback instead.
+ */
+public interface AsyncHttpTransport extends HttpTransport {
+
+    /**
+     * Send the given request.
+     *
+     * <p>The handler is called from a thread owned by the transport and must
+     * not block.</p>
+     *
+     * @param request the request
+     * @param handler the handler to receive the response
+     * @return the exchange
+     * @throws IOException on I/O error
+     */
+    Exchange send(HttpRequest request, ResponseHandler handler) throws IOException;
+
+    /**
+     * A request in flight.
+     */
+    interface Exchange {
+
+        /**
+         * Get the response code.
+         *
+         * @return the response code, or -1 if the response has not yet arrived
+         */
+        int getResponseCode();
+
+        /**
+         * Get the value of a response header.
+         *
+         * @param name the name of the header, which is not case sensitive
+         * @return the value, or null if the header was not sent
+         */
+        String getHeaderField(String name);
+
+        /**
+         * Stop delivering the body until {@link #resume()} is called.
+         */
+        void pause();
+
+        /**
+         * Resume delivering the body.
+         */
+        void resume();
+
+        /**
+         * Abort the exchange, which fails with an {@link IOException} if it has
+         * not yet completed.
+         */
+        void cancel();
+
+    }
+
+    /**
+     * Receives the response to a request.
+     *
+     * <p>Either {@link #onComplete()} or {@link #onFailure(IOException)} is called
+     * exactly once. If a callback throws an exception, the exchange is aborted
+     * and {@link #onFailure(IOException)} is called with that exception.</p>
+     */
+    interface ResponseHandler {
+
+        /**
+         * Called when the head of the response has arrived.
+         *
+         * @param exchange the exchange
+         * @throws IOException to abort the exchange
+         */
+        void onResponse(Exchange exchange) throws IOException;
+
+        /**
+         * Called with the next part of the body, as sent by the server.
+         *
+         * @param data the data, which is only valid for the duration of the call
+         * @throws IOException to abort the exchange
+         */
+        void onData(ByteBuffer data) throws IOException;
+
+        /**
+         * Called when the body has been received in full.
+         *
+         * @throws IOException to fail the exchange
+         */
+        void onComplete() throws IOException;
+
+        /**
+         * Called when the exchange fails.
+         *
+         * @param e the error
+         */
+        void onFailure(IOException e);
+
+    }
+
+}
@@ -0,0 +1,349 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Limits the rate at which the bodies of responses are read, over the whole
+ * launcher and per job.
+ *
+ * <p>Each limiter is a token bucket that is shared by every {@link Job}
+ * created from it, and each job may have a bucket of its own as well. Readers
+ * take tokens for the bytes they have just read, so a reader that gets ahead
+ * waits, and the server is slowed down by the flow control of the
+ * connection. When readers are waiting, the bytes are handed out to jobs in
+ * turn, by the bytes that each has been given, so that a job with many
+ * connections does not crowd out one with few. Readers of foreground jobs
+ * are served before those of background jobs, so that a launch that the user
+ * is waiting on can take the bandwidth that background work would use.</p>
+ *
+ * <p>Rates can be changed at any time, and a rate of 0 means no limit.</p>
+ */
+public class BandwidthLimiter {
+
+    private static final BandwidthLimiter global = new BandwidthLimiter(
+            LauncherUtils.getSystemProperty(BandwidthLimiter.class, "maxRate", 0));
+    private static final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+    private static final long MIN_BURST = 16 * 1024;
+    private static final long MAX_WAIT = 100;
+
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+    @Getter
+    private final Job defaultJob;
+    private long rate;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+    private double virtualTime;
+
+    /**
+     * Create a new limiter.
+     *
+     * @param rate the most bytes per second, or 0 for no limit
+     */
+    public BandwidthLimiter(long rate) {
+        this.rate = Math.max(0, rate);
+        this.defaultJob = new Job("default", false);
+    }
+
+    /**
+     * Create a job whose readers share the bandwidth of this limiter with
+     * those of other jobs.
+     *
+     * @param name the name of the job, for logging
+     * @param foreground true if the job is to be served before background jobs
+     * @return the job
+     */
+    public Job createJob(@NonNull String name, boolean foreground) {
+        return new Job(name, foreground);
+    }
+
+    /**
+     * Get the most bytes per second for all jobs together.
+     *
+     * @return the rate, or 0 for no limit
+     */
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * Set the most bytes per second for all jobs together.
+     *
+     * @param rate the rate, or 0 for no limit
+     */
+    public synchronized void setRate(long rate) {
+        refill(System.nanoTime());
+        this.rate = Math.max(0, rate);
+        notifyAll();
+    }
+
+    /**
+     * Wait until the given job may have read the given number of bytes.
+     *
+     * @param job the job
+     * @param bytes the number of bytes that were read
+     * @throws InterruptedException on interruption
+     */
+    private synchronized void acquire(Job job, int bytes) throws InterruptedException {
+        job.granted += bytes;
+
+        if (rate <= 0 && job.rate <= 0) {
+            return;
+        }
+
+        Waiter waiter = new Waiter(job, Math.max(job.tag, virtualTime) + bytes);
+        job.tag = waiter.tag;
+        waiters.add(waiter);
+
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                refill(now);
+                job.refill(now);
+
+                if (getNext() == waiter) {
+                    if (rate > 0) {
+                        tokens -= bytes;
+                    }
+                    if (job.rate > 0) {
+                        job.tokens -= bytes;
+                    }
+                    virtualTime = waiter.tag;
+                    return;
+                }
+
+                wait(getWait(job));
+            }
+        } finally {
+            waiters.remove(waiter);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Get the waiting reader that is to be served next, which is the one with
+     * the earliest turn of those whose job has tokens left, foreground jobs
+     * first.
+     *
+     * @return the waiter, or null if none may be served yet
+     */
+    private Waiter getNext() {
+        if (rate > 0 && tokens <= 0) {
+            return null;
+        }
+
+        Waiter next = null;
+        for (Waiter waiter : waiters) {
+            Job job = waiter.job;
+            if (job.rate > 0 && job.tokens <= 0) {
+                continue;
+            }
+            if (next == null || (job.foreground && !next.job.foreground) ||
+                    (job.foreground == next.job.foreground && waiter.tag < next.tag)) {
+                next = waiter;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Get how long to wait before checking again for tokens.
+     *
+     * @param job the job of the waiting reader
+     * @return the time in milliseconds
+     */
+    private long getWait(Job job) {
+        double seconds = 0;
+        if (rate > 0 && tokens <= 0) {
+            seconds = (1 - tokens) / rate;
+        }
+        if (job.rate > 0 && job.tokens <= 0) {
+            seconds = Math.max(seconds, (1 - job.tokens) / job.rate);
+        }
+        return Math.max(1, Math.min(MAX_WAIT, (long) Math.ceil(seconds * 1000)));
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(getBurst(rate), tokens + (now - refilledAt) * rate / 1e9);
+        } else {
+            tokens = 0;
+        }
+        refilledAt = now;
+    }
+
+    private static double getBurst(long rate) {
+        return Math.max(MIN_BURST, rate / 4);
+    }
+
+    /**
+     * Get the limiter for the whole launcher.
+     *
+     * @return the limiter
+     */
+    public static BandwidthLimiter getGlobal() {
+        return global;
+    }
+
+    /**
+     * Get the job that requests created on the calling thread belong to.
+     *
+     * @return the job set with {@link #setCurrentJob(Job)}, or else the
+     *         default job of the global limiter
+     */
+    public static Job getCurrentJob() {
+        Job job = currentJob.get();
+        return job != null ? job : global.getDefaultJob();
+    }
+
+    /**
+     * Set the job that requests created on the calling thread belong to.
+     *
+     * @param job the job, or null for the default job
+     */
+    public static void setCurrentJob(Job job) {
+        currentJob.set(job);
+    }
+
+    /**
+     * A share of the bandwidth of a limiter.
+     */
+    public class Job {
+        @Getter
+        private final String name;
+        private boolean foreground;
+        private long rate;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private double tag;
+        private long granted;
+
+        private Job(String name, boolean foreground) {
+            this.name = name;
+            this.foreground = foreground;
+        }
+
+        /**
+         * Get the limiter that this job shares.
+         *
+         * @return the limiter
+         */
+        public BandwidthLimiter getLimiter() {
+            return BandwidthLimiter.this;
+        }
+
+        /**
+         * Wait until this job may have read the given number of bytes.
+         *
+         * @param bytes the number of bytes that were read
+         * @throws InterruptedException on interruption
+         */
+        public void acquire(int bytes) throws InterruptedException {
+            BandwidthLimiter.this.acquire(this, bytes);
+        }
+
+        /**
+         * Get whether this job is served before background jobs.
+         *
+         * @return true if foreground
+         */
+        public boolean isForeground() {
+            synchronized (BandwidthLimiter.this) {
+                return foreground;
+            }
+        }
+
+        /**
+         * Set whether this job is served before background jobs.
+         *
+         * @param foreground true if foreground
+         */
+        public void setForeground(boolean foreground) {
+            synchronized (BandwidthLimiter.this) {
+                this.foreground = foreground;
+                BandwidthLimiter.this.notifyAll();
+            }
+        }
+
+        /**
+         * Get the most bytes per second for this job.
+         *
+         * @return the rate, or 0 for no limit other than that of the limiter
+         */
+        public long getRate() {
+            synchronized (BandwidthLimiter.this) {
+                return rate;
+            }
+        }
+
+        /**
+         * Set the most bytes per second for this job.
+         *
+         * @param rate the rate, or 0 for no limit other than that of the limiter
+         */
+        public void setRate(long rate) {
+            synchronized (BandwidthLimiter.this) {
+                refill(System.nanoTime());
+                this.rate = Math.max(0, rate);
+                BandwidthLimiter.this.notifyAll();
+            }
+        }
+
+        /**
+         * Get the number of bytes read by this job.
+         *
+         * @return the number of bytes
+         */
+        public long getGrantedBytes() {
+            synchronized (BandwidthLimiter.this) {
+                return granted;
+            }
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(getBurst(rate), tokens + (now - refilledAt) * rate / 1e9);
+            } else {
+                tokens = 0;
+            }
+            refilledAt = now;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class Waiter {
+        private final Job job;
+        private final double tag;
+
+        private Waiter(Job job, double tag) {
+            this.job = job;
+            this.tag = tag;
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sk89q.skmcl.util.LauncherUtils.getSystemProperty;
+
+/**
+ * A bounded pool of byte arrays used as copy buffers, so that copying many
+ * small files does not allocate a new buffer for each one.
+ *
+ * <p>Buffers are handed out with {@link #acquire()} and must be given back with
+ * {@link #release(byte[])} once they are no longer used. If the pool is empty,
+ * a new buffer is allocated, and if it is full, returned buffers are left to
+ * the garbage collector.</p>
+ *
+ * <p>The defaults can be changed with the system properties
+ * {@code com.sk89q.skmcl.util.BufferPool.bufferSize} and {@code .capacity}.</p>
+ */
+public class BufferPool {
+
+    private static final BufferPool instance = new BufferPool(
+            (int) getSystemProperty(BufferPool.class, "bufferSize", 1024 * 16),
+            (int) getSystemProperty(BufferPool.class, "capacity", 64));
+
+    private final BlockingQueue<byte[]> buffers;
+    @Getter
+    private final int bufferSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Create a new pool.
+     *
+     * @param bufferSize the size of each buffer
+     * @param capacity the maximum number of idle buffers to keep
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>(Math.max(1, capacity));
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate a new one if the pool is empty.
+     *
+     * @return a buffer of {@link #getBufferSize()} bytes
+     */
+    public byte[] acquire() {
+        byte[] buffer = buffers.poll();
+
+        if (buffer != null) {
+            hits.incrementAndGet();
+            return buffer;
+        } else {
+            misses.incrementAndGet();
+            return new byte[bufferSize];
+        }
+    }
+
+    /**
+     * Return a buffer to the pool.
+     *
+     * @param buffer the buffer, or null
+     */
+    public void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize && !buffers.offer(buffer)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copy the rest of a stream to another stream with a pooled buffer.
+     *
+     * @param in the stream to read from
+     * @param out the stream to write to
+     * @return the number of bytes copied
+     * @throws IOException on I/O error
+     */
+    public long copy(@NonNull InputStream in, @NonNull OutputStream out) throws IOException {
+        byte[] buffer = acquire();
+        long total = 0;
+
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                total += len;
+            }
+        } finally {
+            release(buffer);
+        }
+
+        return total;
+    }
+
+    /**
+     * Read and discard up to the given number of bytes from a stream.
+     *
+     * @param in the stream
+     * @param limit the maximum number of bytes to skip
+     * @return true if the end of the stream was reached
+     * @throws IOException on I/O error
+     */
+    public boolean drain(@NonNull InputStream in, long limit) throws IOException {
+        byte[] buffer = acquire();
+
+        try {
+            long remaining = limit;
+            int len;
+
+            while (remaining > 0 &&
+                    (len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                remaining -= len;
+            }
+
+            return in.read() == -1;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Get the number of buffers that were taken from the pool.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of buffers that had to be allocated because the pool
+     * was empty.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of returned buffers that were discarded because the
+     * pool was full.
+     *
+     * @return the number of dropped buffers
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferPool{bufferSize=%d, idle=%d, hits=%d, misses=%d, dropped=%d}",
+                bufferSize, buffers.size(), hits.get(), misses.get(), dropped.get());
+    }
+
+    /**
+     * Get the shared pool.
+     *
+     * @return the pool
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * Utility methods for checking MD5 and SHA-1 checksums, which are told apart
+ * by their length.
+ */
+public final class Checksums {
+
+    private Checksums() {
+    }
+
+    /**
+     * Turn a checksum into lowercase hex without quotes, such as from an
+     * S3 ETag.
+     *
+     * @param checksum the checksum, or null
+     * @return the checksum, or null if it is not an MD5 or SHA-1 checksum in
+     *         hex, such as the ETag of a multipart upload
+     */
+    public static String normalize(String checksum) {
+        if (checksum == null) {
+            return null;
+        }
+
+        String hex = checksum.trim().replace("\"", "").toLowerCase();
+        if (getAlgorithm(hex) == null || !hex.matches("[0-9a-f]+")) {
+            return null;
+        }
+
+        return hex;
+    }
+
+    /**
+     * Create a digest for the algorithm of the given checksum.
+     *
+     * @param checksum the checksum, as returned by {@link #normalize(String)}
+     * @return the digest
+     */
+    public static MessageDigest createDigest(String checksum) {
+        String algorithm = getAlgorithm(checksum);
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Not an MD5 or SHA-1 checksum: " + checksum);
+        }
+
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Feed part of a file into a digest.
+     *
+     * @param digest the digest
+     * @param file the file
+     * @param offset the position to start reading at
+     * @param length the number of bytes to read
+     * @throws IOException on I/O error, or if the file is shorter
+     */
+    public static void update(MessageDigest digest, File file, long offset, long length) throws IOException {
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquire();
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            if (in.skip(offset) != offset) {
+                throw new IOException(file + " is shorter than " + offset + " bytes");
+            }
+
+            long remaining = length;
+            while (remaining > 0) {
+                int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len == -1) {
+                    throw new IOException(file + " is shorter than " + (offset + length) + " bytes");
+                }
+                digest.update(buffer, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            closeQuietly(in);
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Check the result of a digest against the expected checksum.
+     *
+     * @param digest the digest, which is reset
+     * @param checksum the expected checksum, as returned by {@link #normalize(String)}
+     * @param source what was digested, for the error message
+     * @throws ChecksumMismatchException if the checksums differ
+     */
+    public static void verify(MessageDigest digest, String checksum, Object source)
+            throws ChecksumMismatchException {
+        String actual = new String(Hex.encodeHex(digest.digest()));
+        if (!actual.equals(checksum)) {
+            throw new ChecksumMismatchException(String.format(
+                    "%s checksum of %s is %s, but %s was expected",
+                    digest.getAlgorithm(), source, actual, checksum));
+        }
+    }
+
+    /**
+     * Check the checksum of a whole file.
+     *
+     * @param file the file
+     * @param checksum the expected checksum, as returned by {@link #normalize(String)}
+     * @throws IOException on I/O error
+     * @throws ChecksumMismatchException if the checksums differ
+     */
+    public static void verify(File file, String checksum) throws IOException {
+        MessageDigest digest = createDigest(checksum);
+        update(digest, file, 0, file.length());
+        verify(digest, checksum, file);
+    }
+
+    private static String getAlgorithm(String hex) {
+        switch (hex.length()) {
+            case 32:
+                return "MD5";
+            case 40:
+                return "SHA-1";
+            default:
+                return null;
+        }
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.java.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Stops requests to a host after several in a row have failed, so that a host
+ * that is down costs one quick failure per request rather than a timeout and
+ * several retries.
+ *
+ * <p>The breaker opens after {@link #getFailureThreshold()} consecutive
+ * failures that span at least {@link #getFailurePeriod()} without a success,
+ * so that a host that only fails some requests, such as one that is
+ * throttling, is not taken for one that is down. While the breaker is open,
+ * requests are refused. Once the open time has passed, a single request is
+ * let through as a probe: if it succeeds the breaker closes, and if it fails
+ * the breaker opens again. A failure is a request that got no response, or a
+ * response that says the server is unavailable or throttling.</p>
+ */
+@Log
+public class CircuitBreaker {
+
+    private static final Map<String, CircuitBreaker> hosts = new HashMap<String, CircuitBreaker>();
+
+    @Getter
+    private final String host;
+    @Getter @Setter
+    private int failureThreshold = (int) LauncherUtils.getSystemProperty(CircuitBreaker.class, "failureThreshold", 5);
+    @Getter @Setter
+    private long failurePeriod = LauncherUtils.getSystemProperty(CircuitBreaker.class, "failurePeriod", 1000);
+    @Getter @Setter
+    private long openTime = LauncherUtils.getSystemProperty(CircuitBreaker.class, "openTime", 30000);
+    private State state = State.CLOSED;
+    private int failures;
+    private long firstFailureAt;
+    private long openedAt;
+
+    /**
+     * Create a new breaker.
+     *
+     * @param host the host that the breaker is for
+     */
+    public CircuitBreaker(@NonNull String host) {
+        this.host = host;
+    }
+
+    /**
+     * Get whether the breaker is open, so that requests are being refused.
+     *
+     * @return true if open
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Check whether a request may be sent, which may make it the probe of
+     * whether the host is back.
+     *
+     * @return true if the request may be sent
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        // Let one probe through per open time, so that a probe that never
+        // reports back does not hold the breaker open forever
+        long now = System.currentTimeMillis();
+        if (now - openedAt >= openTime) {
+            state = State.HALF_OPEN;
+            openedAt = now;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Check whether a request may be sent, throwing if it may not.
+     *
+     * @throws HostUnavailableException if the breaker is open
+     */
+    public void checkRequest() throws HostUnavailableException {
+        if (!allowRequest()) {
+            throw new HostUnavailableException(host, String.format(
+                    "Not contacting %s because its last %d requests failed", host, failureThreshold));
+        }
+    }
+
+    /**
+     * Record that a request got a response that was not a failure.
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.log(Level.INFO, "{0} is reachable again", host);
+        }
+
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Record that a request failed.
+     */
+    public synchronized void recordFailure() {
+        long now = System.currentTimeMillis();
+
+        if (failures++ == 0) {
+            firstFailureAt = now;
+        }
+
+        if (state == State.HALF_OPEN || (state == State.CLOSED &&
+                failures >= failureThreshold && now - firstFailureAt >= failurePeriod)) {
+            if (state == State.CLOSED) {
+                log.log(Level.WARNING, "{0} looks to be down after {1} failed requests; " +
+                        "refusing requests to it for {2} ms", new Object[] { host, failures, openTime });
+            }
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    /**
+     * Record the outcome of a request from the response code it got.
+     *
+     * @param responseCode the response code
+     */
+    public void recordResponse(int responseCode) {
+        if (responseCode >= 500 || responseCode == 429) {
+            recordFailure();
+        } else {
+            recordSuccess();
+        }
+    }
+
+    /**
+     * Get the breaker for the given host.
+     *
+     * @param host the host
+     * @return the breaker, which is shared by every request to the host
+     */
+    public static CircuitBreaker forHost(@NonNull String host) {
+        synchronized (hosts) {
+            CircuitBreaker breaker = hosts.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(host);
+                hosts.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Get whether the given error, or one that caused it, is from a request
+     * that was refused because its host is down, or from a download whose
+     * host has since had its breaker opened, in which case the error was
+     * likely one of the failures that opened it.
+     *
+     * @param t the error
+     * @return true if the host of the failed request was unavailable
+     */
+    public static boolean isHostUnavailable(Throwable t) {
+        String host = null;
+
+        while (t != null) {
+            if (t instanceof HostUnavailableException) {
+                return true;
+            } else if (host == null && t instanceof DownloadFailedException) {
+                host = ((DownloadFailedException) t).getUrl().getHost();
+            }
+            t = t.getCause();
+        }
+
+        if (host == null) {
+            return false;
+        }
+
+        CircuitBreaker breaker;
+        synchronized (hosts) {
+            breaker = hosts.get(host);
+        }
+        return breaker != null && breaker.isOpen();
+    }
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.NonNull;
+import lombok.extern.java.Log;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.ObjectReader;
+import org.codehaus.jackson.map.ObjectWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+/**
+ * Shares JSON and XML binding objects, which are expensive to create but safe
+ * to use from many threads once created.
+ *
+ * <p>JSON readers and JAXB contexts are cached per type. Types can be bound ahead
+ * of their first use with {@link #prewarm(Class[])}.</p>
+ */
+@Log
+public final class Codecs {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectWriter writer = mapper.writer();
+    private static final ConcurrentMap<Class<?>, ObjectReader> readers =
+            new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private static final ConcurrentMap<Class<?>, JAXBContext> contexts =
+            new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+    private Codecs() {
+    }
+
+    /**
+     * Get a reader that reads JSON as the given type.
+     *
+     * @param cls the type
+     * @return the reader
+     */
+    public static ObjectReader getReader(@NonNull Class<?> cls) {
+        ObjectReader reader = readers.get(cls);
+        if (reader == null) {
+            reader = mapper.reader(cls);
+            ObjectReader existing = readers.putIfAbsent(cls, reader);
+            if (existing != null) {
+                reader = existing;
+            }
+        }
+        return reader;
+    }
+
+    /**
+     * Get the writer for JSON.
+     *
+     * @return the writer
+     */
+    public static ObjectWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Get the JAXB context for the given type.
+     *
+     * @param cls the type
+     * @return the context
+     * @throws JAXBException thrown if the type cannot be bound
+     */
+    public static JAXBContext getContext(@NonNull Class<?> cls) throws JAXBException {
+        JAXBContext context = contexts.get(cls);
+        if (context == null) {
+            context = JAXBContext.newInstance(cls);
+            JAXBContext existing = contexts.putIfAbsent(cls, context);
+            if (existing != null) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Create an unmarshaller for the given type, which must only be used by
+     * the calling thread.
+     *
+     * @param cls the type
+     * @return the unmarshaller
+     * @throws JAXBException thrown if the type cannot be bound
+     */
+    public static Unmarshaller createUnmarshaller(Class<?> cls) throws JAXBException {
+        return getContext(cls).createUnmarshaller();
+    }
+
+    /**
+     * Bind the given types in a background thread, so that their first use
+     * does not pay for it.
+     *
+     * <p>Types annotated with {@link XmlRootElement} are bound for XML, and all
+     * others for JSON.</p>
+     *
+     * @param types the types
+     */
+    public static void prewarm(final Class<?>... types) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+
+                for (Class<?> type : types) {
+                    try {
+                        if (type.isAnnotationPresent(XmlRootElement.class)) {
+                            createUnmarshaller(type);
+                        } else {
+                            // Serializers and deserializers are only built once used
+                            getReader(type).readValue("{}");
+                            mapper.canSerialize(type);
+                        }
+                    } catch (Exception e) {
+                        log.log(Level.FINE, "Failed to pre-warm " + type.getName(), e);
+                    }
+                }
+
+                log.log(Level.INFO, "Pre-warmed {0} codecs in {1} ms",
+                        new Object[] { types.length, System.currentTimeMillis() - start });
+            }
+        }, "Codec warm-up");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+}
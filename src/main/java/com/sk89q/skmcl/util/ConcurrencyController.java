@@ -0,0 +1,453 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.extern.java.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+/**
+ * Limits the number of transfers in flight, and adjusts the limit from what
+ * the transfers that finish show about the link.
+ *
+ * <p>The limit is adjusted once per window of finished transfers, in the
+ * manner of additive increase and multiplicative decrease. It is cut if too
+ * many transfers in the window failed, or if their time to the first byte grew
+ * to well above the best seen, which means that requests are queueing behind
+ * each other on the link or at the server. Otherwise, it grows by one if the
+ * throughput of the window in bytes or in transfers has kept up with the last
+ * window, and holds if it has not, because more transfers at once would not
+ * help. Until the limit is first cut or held, it doubles instead of growing by
+ * one, so that a fast link is filled within a few windows.</p>
+ *
+ * <p>Transfers either block in {@link #acquire(int, long)} or are queued with
+ * {@link #acquireLater(Runnable, int, long)} until they may start, and each
+ * must call {@link #release(int)} once it is done. Every transfer belongs to a
+ * lane, which has its own queue: waiting transfers of a lower lane start
+ * before those of a higher one, and within a lane, in order of their priority
+ * and then in the order that they arrived. A lane may be given a share of the
+ * limit that its transfers may not exceed while a lower lane has transfers
+ * waiting or in flight, so that those get most of the link, or at all times
+ * while the controller is {@link #setReserving(boolean) reserving} slots for
+ * transfers of lower lanes that have not arrived yet.</p>
+ */
+@Log
+public class ConcurrencyController {
+
+    private static final long MIN_WINDOW_NANOS = 500 * 1000000L;
+    private static final int MIN_WINDOW_SIZE = 4;
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double MAX_ERROR_RATE = 0.1;
+    private static final double MAX_LATENCY_RATIO = 2;
+    private static final double MIN_THROUGHPUT_RATIO = 0.9;
+
+    @Getter
+    private final int min;
+    @Getter
+    private final int max;
+    private final TreeMap<Integer, Lane> lanes = new TreeMap<Integer, Lane>();
+    private long arrivals;
+    private boolean reserving;
+    private int limit;
+    private int inFlight;
+
+    private long windowStart = System.nanoTime();
+    private int windowCount;
+    private int windowFailures;
+    private long windowBytes;
+    private long windowLatency;
+    private int windowLatencyCount;
+    private double lastByteRate = -1;
+    private double lastCountRate = -1;
+    @Getter
+    private double baseLatency = -1;
+    private boolean slowStart = true;
+    @Getter
+    private int increases;
+    @Getter
+    private int decreases;
+
+    /**
+     * Create a new controller.
+     *
+     * @param min the least number of transfers to allow at once
+     * @param initial the number of transfers to allow at first
+     * @param max the most number of transfers to allow at once
+     */
+    public ConcurrencyController(int min, int initial, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.limit = Math.min(this.max, Math.max(this.min, initial));
+    }
+
+    /**
+     * Get the number of transfers currently allowed at once.
+     *
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the number of transfers in flight.
+     *
+     * @return the number of transfers
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Set the share of the limit that transfers of a lane may use at once.
+     * Each lane may always have at least one transfer in flight.
+     *
+     * @param lane the lane
+     * @param share the share, from 0 to 1
+     */
+    public void setShare(int lane, double share) {
+        synchronized (this) {
+            getLane(lane).share = Math.max(0, Math.min(1, share));
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Set whether the shares of lanes apply even while no lower lane has
+     * transfers, which keeps slots free for transfers that are yet to come.
+     *
+     * @param reserving true to reserve slots
+     */
+    public void setReserving(boolean reserving) {
+        synchronized (this) {
+            this.reserving = reserving;
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Wait until a transfer may start.
+     *
+     * @throws InterruptedException on interruption
+     * @see #acquire(int, long)
+     */
+    public void acquire() throws InterruptedException {
+        acquire(0, 0);
+    }
+
+    /**
+     * Wait until a transfer in the given lane may start, letting those in
+     * lower lanes, and then those with a higher priority, start first.
+     *
+     * @param lane the lane
+     * @param priority the priority within the lane
+     * @throws InterruptedException on interruption
+     */
+    public void acquire(int lane, long priority) throws InterruptedException {
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(null, priority, arrivals++);
+            getLane(lane).waiting.add(waiter);
+        }
+
+        startWaiting();
+
+        synchronized (this) {
+            try {
+                while (!waiter.started) {
+                    wait();
+                }
+                return;
+            } catch (InterruptedException e) {
+                if (getLane(lane).waiting.remove(waiter)) {
+                    throw e;
+                }
+            }
+        }
+
+        // The transfer was let start as the thread was interrupted
+        release(lane);
+        throw new InterruptedException();
+    }
+
+    /**
+     * Run the given task once a transfer may start.
+     *
+     * @param task the task, which must call {@link #release()} once it is done
+     * @see #acquireLater(Runnable, int, long)
+     */
+    public void acquireLater(Runnable task) {
+        acquireLater(task, 0, 0);
+    }
+
+    /**
+     * Run the given task once a transfer in the given lane may start, which
+     * may be right away on the calling thread, or later on the thread that
+     * calls {@link #release(int)} or {@link #record(long, long, boolean)},
+     * letting those in lower lanes, and then those with a higher priority,
+     * start first.
+     *
+     * @param task the task, which must call {@link #release(int)} once it is done
+     * @param lane the lane
+     * @param priority the priority within the lane
+     */
+    public void acquireLater(Runnable task, int lane, long priority) {
+        synchronized (this) {
+            getLane(lane).waiting.add(new Waiter(task, priority, arrivals++));
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Mark a transfer as done, letting another start.
+     *
+     * @see #release(int)
+     */
+    public void release() {
+        release(0);
+    }
+
+    /**
+     * Mark a transfer in the given lane as done, letting another start.
+     *
+     * @param lane the lane that the transfer was started in
+     */
+    public void release(int lane) {
+        synchronized (this) {
+            getLane(lane).inFlight--;
+            inFlight--;
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Drop the tasks that were queued with {@link #acquireLater(Runnable)} and
+     * have not started, which will then never run. Threads blocked in
+     * {@link #acquire(int, long)} keep waiting.
+     *
+     * @return the number of tasks dropped
+     */
+    public synchronized int clearQueued() {
+        int count = 0;
+        for (Lane lane : lanes.values()) {
+            Iterator<Waiter> it = lane.waiting.iterator();
+            while (it.hasNext()) {
+                if (it.next().task != null) {
+                    it.remove();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private Lane getLane(int lane) {
+        Lane existing = lanes.get(lane);
+        if (existing == null) {
+            existing = new Lane();
+            lanes.put(lane, existing);
+        }
+        return existing;
+    }
+
+    /**
+     * Record the outcome of a finished transfer.
+     *
+     * @param bytes the number of bytes received
+     * @param latencyNanos the time until the first byte of the response, or -1
+     *                     if it is not known
+     * @param failed true if the transfer failed
+     */
+    public void record(long bytes, long latencyNanos, boolean failed) {
+        synchronized (this) {
+            windowCount++;
+            windowBytes += bytes;
+            if (failed) {
+                windowFailures++;
+            }
+            if (latencyNanos >= 0) {
+                windowLatency += latencyNanos;
+                windowLatencyCount++;
+            }
+
+            long now = System.nanoTime();
+            long elapsed = now - windowStart;
+            if (windowCount >= Math.max(MIN_WINDOW_SIZE, limit) && elapsed >= MIN_WINDOW_NANOS) {
+                adjust(elapsed);
+                windowStart = now;
+                windowCount = 0;
+                windowFailures = 0;
+                windowBytes = 0;
+                windowLatency = 0;
+                windowLatencyCount = 0;
+            }
+        }
+
+        startWaiting();
+    }
+
+    /**
+     * Change the limit from the transfers of the window that just ended.
+     *
+     * @param elapsed the length of the window in nanoseconds
+     */
+    private void adjust(long elapsed) {
+        double seconds = elapsed / 1e9;
+        double byteRate = windowBytes / seconds;
+        double countRate = (windowCount - windowFailures) / seconds;
+        double errorRate = windowFailures / (double) windowCount;
+        double latency = windowLatencyCount > 0 ? windowLatency / (double) windowLatencyCount : -1;
+        int previous = limit;
+        String reason;
+
+        if (latency >= 0 && (baseLatency < 0 || latency < baseLatency)) {
+            baseLatency = latency;
+        }
+
+        if (errorRate > MAX_ERROR_RATE) {
+            limit = Math.max(min, (int) (limit * DECREASE_FACTOR));
+            slowStart = false;
+            reason = String.format("%.0f%% failed", errorRate * 100);
+        } else if (latency >= 0 && latency > baseLatency * MAX_LATENCY_RATIO) {
+            limit = Math.max(min, (int) (limit * DECREASE_FACTOR));
+            slowStart = false;
+            reason = String.format("latency %.0f ms over a best of %.0f ms", latency / 1e6, baseLatency / 1e6);
+        } else if (lastByteRate < 0 ||
+                byteRate >= lastByteRate * MIN_THROUGHPUT_RATIO ||
+                countRate >= lastCountRate * MIN_THROUGHPUT_RATIO) {
+            limit = Math.min(max, slowStart ? limit * 2 : limit + 1);
+            reason = String.format("%.0f KB/s, %.1f transfers/s", byteRate / 1024, countRate);
+        } else {
+            slowStart = false;
+            reason = "throughput fell";
+        }
+
+        lastByteRate = byteRate;
+        lastCountRate = countRate;
+
+        if (limit > previous) {
+            increases++;
+        } else if (limit < previous) {
+            decreases++;
+        }
+
+        if (limit != previous) {
+            log.log(Level.FINE, "Concurrency {0} -> {1} ({2})", new Object[] { previous, limit, reason });
+        }
+    }
+
+    /**
+     * Start queued tasks while the limit allows.
+     */
+    private void startWaiting() {
+        List<Runnable> tasks = new ArrayList<Runnable>();
+
+        synchronized (this) {
+            boolean started = false;
+
+            while (inFlight < limit) {
+                Waiter waiter = null;
+                boolean capped = reserving;
+                for (Lane lane : lanes.values()) {
+                    if (!lane.waiting.isEmpty() && (!capped || lane.inFlight < lane.getMax(limit))) {
+                        waiter = lane.waiting.poll();
+                        lane.inFlight++;
+                        break;
+                    }
+                    capped |= lane.inFlight > 0 || !lane.waiting.isEmpty();
+                }
+
+                if (waiter == null) {
+                    break;
+                }
+
+                inFlight++;
+                if (waiter.task != null) {
+                    tasks.add(waiter.task);
+                } else {
+                    waiter.started = true;
+                    started = true;
+                }
+            }
+
+            if (started) {
+                notifyAll();
+            }
+        }
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("limit=%d (%d-%d), in flight=%d, %d increases, %d decreases",
+                limit, min, max, inFlight, increases, decreases);
+    }
+
+    /**
+     * The transfers of a lane.
+     */
+    private static class Lane {
+        private final PriorityQueue<Waiter> waiting = new PriorityQueue<Waiter>();
+        private double share = 1;
+        private int inFlight;
+
+        private int getMax(int limit) {
+            return Math.max(1, (int) Math.ceil(limit * share));
+        }
+    }
+
+    /**
+     * A transfer that is waiting to start, which is either a queued task or
+     * a thread blocked in {@link #acquire(int, long)}.
+     */
+    private static class Waiter implements Comparable<Waiter> {
+        private final Runnable task;
+        private final long priority;
+        private final long arrival;
+        private boolean started;
+
+        private Waiter(Runnable task, long priority, long arrival) {
+            this.task = task;
+            this.priority = priority;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            if (priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            return arrival < o.arrival ? -1 : (arrival > o.arrival ? 1 : 0);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Data;
+import lombok.NonNull;
+import lombok.extern.java.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Resolves and connects to hosts ahead of the requests that will need them.
+ *
+ * <p>A HEAD request is sent to each URL, which caches the DNS lookup, loads and
+ * initializes the TLS stack, leaves a TLS session that later handshakes can
+ * resume, and parks the connection in the pool until it times out. A second
+ * request is then made over the parked connection, and the difference between
+ * the two is logged as the time saved for the first real request.</p>
+ */
+@Log
+public class ConnectionWarmUp implements Runnable {
+
+    private static final int TIMEOUT = 1000 * 10;
+
+    private final List<URL> urls;
+    private final List<Timing> timings = new ArrayList<Timing>();
+
+    /**
+     * Create a new warm-up.
+     *
+     * @param urls the URLs to request
+     */
+    public ConnectionWarmUp(@NonNull List<URL> urls) {
+        this.urls = urls;
+    }
+
+    /**
+     * Run the warm-up in a new background thread.
+     *
+     * @return the thread
+     */
+    public Thread start() {
+        Thread thread = new Thread(this, "Connection warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        for (URL url : urls) {
+            Timing timing = new Timing(url);
+
+            try {
+                long start = System.nanoTime();
+                InetAddress.getAllByName(url.getHost());
+                timing.setDnsMillis(elapsed(start));
+
+                start = System.nanoTime();
+                head(url);
+                timing.setColdMillis(elapsed(start));
+
+                start = System.nanoTime();
+                head(url);
+                timing.setWarmMillis(elapsed(start));
+
+                log.log(Level.INFO, "Warmed up {0}: DNS {1} ms, first request {2} ms, " +
+                        "reused connection {3} ms (saves {4} ms)",
+                        new Object[] { url.getHost(), timing.getDnsMillis(), timing.getColdMillis(),
+                                timing.getWarmMillis(), timing.getSavedMillis() });
+            } catch (IOException e) {
+                log.log(Level.INFO, "Failed to warm up " + url.getHost() + ": " + e.getMessage());
+            }
+
+            synchronized (timings) {
+                timings.add(timing);
+            }
+
+            if (Thread.interrupted()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the timings of the hosts warmed up so far.
+     *
+     * @return a list of timings
+     */
+    public List<Timing> getTimings() {
+        synchronized (timings) {
+            return Collections.unmodifiableList(new ArrayList<Timing>(timings));
+        }
+    }
+
+    private static void head(URL url) throws IOException {
+        HttpRequest request = HttpRequest.request("HEAD", url)
+                .caller("ConnectionWarmUp")
+                .connectTimeout(TIMEOUT)
+                .readTimeout(TIMEOUT);
+
+        try {
+            request.execute().getResponseCode();
+        } finally {
+            request.close();
+        }
+    }
+
+    private static long elapsed(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * The time taken to warm up a host, in milliseconds, or -1 where the step
+     * did not complete.
+     */
+    @Data
+    public static class Timing {
+        private final URL url;
+        private long dnsMillis = -1;
+        private long coldMillis = -1;
+        private long warmMillis = -1;
+
+        /**
+         * Get the time that reusing the connection saved over a cold request.
+         *
+         * @return the time saved, or -1 if it is not known
+         */
+        public long getSavedMillis() {
+            return coldMillis >= 0 && warmMillis >= 0 ? coldMillis - warmMillis : -1;
+        }
+    }
+
+}
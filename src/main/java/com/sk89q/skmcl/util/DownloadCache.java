@@ -0,0 +1,324 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.java.Log;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * An on-disk cache of downloaded files that is shared by every profile.
+ *
+ * <p>Files are stored once under the SHA-1 hash of their contents, and are
+ * found by the MD5 or SHA-1 checksum they were downloaded with through a small
+ * index file per checksum. Files are moved into the cache with a rename, so
+ * that another launcher reading the cache never sees a file that is only partly
+ * written. The least recently used files are evicted once the total size of the
+ * stored files exceeds the size limit.</p>
+ *
+ * <p>Only files with a known checksum are stored, so nothing in the cache can
+ * go stale, and a stored file is checked against its checksum before it is
+ * handed out. The cache is meant for files that are copied to a place of
+ * their own for each profile, such as game jars; files that every profile
+ * shares already exist only once and gain nothing from it.</p>
+ */
+@Log
+public class DownloadCache {
+
+    private static DownloadCache defaultCache;
+
+    @Getter
+    private final File dir;
+    @Getter @Setter
+    private long maxSize;
+    private LinkedHashMap<String, Long> objects;
+    private long size;
+
+    /**
+     * Create a new cache.
+     *
+     * @param dir the directory to store files in
+     * @param maxSize the maximum total size of stored files in bytes
+     */
+    public DownloadCache(@NonNull File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the stored file with the given checksum.
+     *
+     * <p>The returned file belongs to the cache and must only be read. A stored
+     * file that no longer matches its checksum is removed.</p>
+     *
+     * @param checksum the MD5 or SHA-1 checksum of the file in hex
+     * @return the file, or null if it is not cached
+     */
+    public synchronized File get(@NonNull String checksum) {
+        String key = Checksums.normalize(checksum);
+        if (key == null) {
+            return null;
+        }
+
+        load();
+
+        File entryFile = getEntryFile(key);
+        if (!entryFile.exists()) {
+            return null;
+        }
+
+        Entry entry;
+        try {
+            entry = Codecs.getReader(Entry.class).readValue(entryFile);
+        } catch (IOException e) {
+            entryFile.delete();
+            return null;
+        }
+
+        File object = getObjectFile(entry.getHash());
+        if (entry.getHash() == null || !key.equals(entry.getKey()) || !object.exists()) {
+            entryFile.delete(); // The file was evicted
+            return null;
+        }
+
+        try {
+            Checksums.verify(object, key);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Removing " + object + " from the download cache", e);
+            Long removed = objects.remove(entry.getHash());
+            size -= removed != null ? removed : 0;
+            object.delete();
+            entryFile.delete();
+            return null;
+        }
+
+        objects.get(entry.getHash()); // Mark as recently used
+        object.setLastModified(System.currentTimeMillis());
+        return object;
+    }
+
+    /**
+     * Move a downloaded file into the cache under its checksum.
+     *
+     * <p>If a file with the same contents is already stored, the given file is
+     * deleted and the checksum points to the stored file.</p>
+     *
+     * @param checksum the MD5 or SHA-1 checksum of the file in hex
+     * @param file the file, which is moved or deleted if it is cached
+     * @return true if the file is now cached, or false if it was left in place
+     */
+    public synchronized boolean put(@NonNull String checksum, @NonNull File file) {
+        String key = Checksums.normalize(checksum);
+        if (key == null) {
+            return false;
+        }
+
+        load();
+
+        if (!file.isFile() || file.length() > maxSize) {
+            return false; // Would push out everything else
+        }
+
+        try {
+            Checksums.verify(file, key);
+            String hash = getHash(file);
+            File object = getObjectFile(hash);
+
+            if (objects.containsKey(hash) && object.exists()) {
+                file.delete();
+                object.setLastModified(System.currentTimeMillis());
+            } else {
+                publish(file, object);
+                objects.put(hash, object.length());
+                size += object.length();
+            }
+
+            Entry entry = new Entry();
+            entry.setKey(key);
+            entry.setHash(hash);
+            getIndexDir().mkdirs();
+            File temp = File.createTempFile("entry", ".tmp", getIndexDir());
+            Codecs.getWriter().writeValue(temp, entry);
+            publish(temp, getEntryFile(key));
+
+            evict();
+            return true;
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to store " + file + " in the download cache", e);
+            return false;
+        }
+    }
+
+    /**
+     * Move a file into its place in the cache with a rename, or with a copy
+     * that is renamed into place if the file is on another file system.
+     *
+     * @param file the file to move
+     * @param target the path in the cache
+     * @throws IOException on I/O error
+     */
+    private void publish(File file, File target) throws IOException {
+        target.getParentFile().mkdirs();
+        target.delete();
+
+        if (file.renameTo(target)) {
+            return;
+        }
+
+        File temp = File.createTempFile("object", ".tmp", target.getParentFile());
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            in = new FileInputStream(file);
+            out = new FileOutputStream(temp);
+            BufferPool.getInstance().copy(in, out);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + target);
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Remove the least recently used files until the cache fits its size limit.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = objects.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            getObjectFile(eldest.getKey()).delete();
+        }
+    }
+
+    /**
+     * Read the stored files from disk, if they have not been read yet.
+     */
+    private void load() {
+        if (objects != null) {
+            return;
+        }
+
+        // Access-ordered, so iteration starts at the least recently used file
+        objects = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        size = 0;
+
+        File[] files = getObjectsDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> stored = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete(); // Left over from an interrupted copy
+            } else {
+                stored.add(file);
+            }
+        }
+
+        Collections.sort(stored, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long a = o1.lastModified(), b = o2.lastModified();
+                return a < b ? -1 : (a > b ? 1 : 0);
+            }
+        });
+
+        for (File file : stored) {
+            objects.put(file.getName(), file.length());
+            size += file.length();
+        }
+
+        evict();
+    }
+
+    private File getObjectsDir() {
+        return new File(dir, "objects");
+    }
+
+    private File getIndexDir() {
+        return new File(dir, "index");
+    }
+
+    private File getObjectFile(String hash) {
+        return new File(getObjectsDir(), hash);
+    }
+
+    private File getEntryFile(String key) {
+        return new File(getIndexDir(), DigestUtils.shaHex(key) + ".json");
+    }
+
+    private static String getHash(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return DigestUtils.shaHex(in);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Get the cache used by installers.
+     *
+     * @return the cache, or null if there is none
+     */
+    public static synchronized DownloadCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Set the cache used by installers.
+     *
+     * @param cache the cache, or null to disable caching
+     */
+    public static synchronized void setDefault(DownloadCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * The file that a checksum points to.
+     */
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Entry {
+        private String key;
+        private String hash;
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Thrown when a file could not be downloaded, to tell which URL the last
+ * attempt was made to, since the error that caused it may not say.
+ */
+public class DownloadFailedException extends IOException {
+
+    private static final long serialVersionUID = 2787160935591462318L;
+
+    @Getter
+    private final URL url;
+
+    public DownloadFailedException(URL url, Throwable cause) {
+        super("Failed to download " + url + ": " + cause.getMessage(), cause);
+        this.url = url;
+    }
+
+}
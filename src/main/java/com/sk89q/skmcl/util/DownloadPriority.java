@@ -0,0 +1,54 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+/**
+ * How soon a download is needed, which decides the order in which the
+ * downloads of a {@link HttpDownloader} start.
+ *
+ * <p>While more urgent files are waiting or in flight, or files can still be
+ * submitted, the downloads of each class may only fill a share of the
+ * concurrency limit, so that the more urgent files get most of the link.</p>
+ *
+ * <p>If a file of a class that is needed to launch fails to download, the
+ * downloader gives up on the rest at once, whereas files that the game can do
+ * without are downloaded on a best-effort basis.</p>
+ */
+public enum DownloadPriority {
+
+    /** Files that the launch cannot do without, such as the game and its libraries. */
+    CRITICAL(1, true),
+    /** Files that the game needs once it runs. */
+    REQUIRED(0.5, true),
+    /** Files that the game can run without, such as music. */
+    OPTIONAL(0.25, false);
+
+    @Getter
+    private final double share;
+    @Getter
+    private final boolean failFast;
+
+    DownloadPriority(double share, boolean failFast) {
+        this.share = share;
+        this.failFast = failFast;
+    }
+
+}
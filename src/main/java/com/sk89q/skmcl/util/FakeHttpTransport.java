@@ -0,0 +1,523 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport that answers requests from memory, so that the download and
+ * install code can be exercised and profiled without a network.
+ *
+ * <p>Responses are registered per URL with {@link #serve(String, byte[])}, and
+ * URLs without a response get a 404, or the route set with
+ * {@link #setDefaultRoute(Route)}. Every response waits for the configured
+ * latency before its head is returned, and its body is read no faster than the
+ * configured bandwidth, and the bodies of all responses together no faster
+ * than the configured link bandwidth. Failures can be injected at random with
+ * a seeded generator, so that a run can be repeated, or for a fixed number of requests
+ * to a route with {@link Route#failures(int)}, and bodies can be cut short or
+ * altered at random. Responses advertise support for ranges, and requests for
+ * a single range of bytes are answered with a partial response, subject to any
+ * {@code If-Range} header.</p>
+ *
+ * <p>Install it with {@link HttpRequest#setDefaultTransport(HttpTransport)} or
+ * per request with {@link HttpRequest#transport(HttpTransport)}.</p>
+ */
+public class FakeHttpTransport implements HttpTransport {
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<String, Route>();
+    private final Random random;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final Object linkLock = new Object();
+    private long linkFreeAt;
+    private volatile Route defaultRoute = new Route(new byte[0]).code(404);
+
+    /**
+     * Time to wait before returning the head of each response, in milliseconds.
+     */
+    @Getter @Setter
+    private volatile long latency;
+
+    /**
+     * Maximum rate at which the body of each response is read, in bytes per
+     * second, or 0 for no limit.
+     */
+    @Getter @Setter
+    private volatile long bandwidth;
+
+    /**
+     * Maximum rate at which the bodies of all responses together are read, in
+     * bytes per second, or 0 for no limit. The head of a response waits behind
+     * the body bytes already queued on the link, so the time to the first byte
+     * grows as more transfers share it.
+     */
+    @Getter @Setter
+    private volatile long linkBandwidth;
+
+    /**
+     * Chance between 0 and 1 that the body of a response is read at a tenth
+     * of the configured bandwidth, as over a congested path.
+     */
+    @Getter @Setter
+    private volatile double slowRate;
+
+    /**
+     * Chance between 0 and 1 that a request fails before a response arrives.
+     */
+    @Getter @Setter
+    private volatile double failureRate;
+
+    /**
+     * Chance between 0 and 1 that the body of a response is cut short.
+     */
+    @Getter @Setter
+    private volatile double truncationRate;
+
+    /**
+     * Chance between 0 and 1 that a byte of the body of a response is altered.
+     */
+    @Getter @Setter
+    private volatile double corruptionRate;
+
+    /**
+     * Create a new transport with a random seed.
+     */
+    public FakeHttpTransport() {
+        this(new Random().nextLong());
+    }
+
+    /**
+     * Create a new transport.
+     *
+     * @param seed the seed for injected failures
+     */
+    public FakeHttpTransport(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Serve a response with the given body for the given URL.
+     *
+     * @param url the URL
+     * @param body the body
+     * @return the route, which can be configured further
+     */
+    public Route serve(@NonNull String url, @NonNull byte[] body) {
+        Route route = new Route(body);
+        routes.put(url, route);
+        return route;
+    }
+
+    /**
+     * Serve a response with the given body, encoded as UTF-8, for the given URL.
+     *
+     * @param url the URL
+     * @param body the body
+     * @return the route, which can be configured further
+     */
+    public Route serve(@NonNull String url, @NonNull String body) {
+        try {
+            return serve(url, body.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Set the route used for URLs that have not been registered.
+     *
+     * @param route the route
+     */
+    public void setDefaultRoute(@NonNull Route route) {
+        this.defaultRoute = route;
+    }
+
+    /**
+     * Get the number of requests received.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Get the number of requests that were made to fail.
+     *
+     * @return the number of injected failures
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Get the number of bytes of response bodies that were read.
+     *
+     * @return the number of bytes
+     */
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    @Override
+    public Response open(HttpRequest request) throws IOException {
+        URL url = request.getUrl();
+        Route route = routes.get(url.toString());
+        if (route == null) {
+            route = defaultRoute;
+        }
+
+        requestCount.incrementAndGet();
+
+        long started = System.nanoTime();
+        sleep(latency + route.latency);
+        useLink(0);
+        request.getMetrics().recordSince(RequestMetrics.Phase.FIRST_BYTE, started);
+
+        if (route.takeFailure() || chance(failureRate)) {
+            failureCount.incrementAndGet();
+            throw new ConnectException("Injected failure for " + url);
+        }
+
+        Map<String, String> requestHeaders = request.getHeaders();
+        boolean notModified = route.etag != null &&
+                route.etag.equals(requestHeaders.get("If-None-Match"));
+        int code = notModified ? 304 : route.code;
+        byte[] body = notModified || request.getMethod().equals("HEAD") ? new byte[0] : route.body;
+        String contentRange = null;
+
+        long[] range = getRange(requestHeaders.get("Range"), body.length);
+        String ifRange = requestHeaders.get("If-Range");
+        if (code == 200 && range != null && (ifRange == null || ifRange.equals(route.etag))) {
+            code = 206;
+            contentRange = "bytes " + range[0] + "-" + range[1] + "/" + body.length;
+            body = Arrays.copyOfRange(body, (int) range[0], (int) range[1] + 1);
+        }
+
+        if (body.length > 0 && chance(corruptionRate)) {
+            failureCount.incrementAndGet();
+            body = body.clone();
+            synchronized (random) {
+                body[random.nextInt(body.length)] ^= 0xff;
+            }
+        }
+
+        int length = body.length;
+        if (length > 0 && chance(truncationRate)) {
+            failureCount.incrementAndGet();
+            synchronized (random) {
+                length = random.nextInt(length);
+            }
+        }
+
+        Map<String, String> headers = new HashMap<String, String>(route.headers);
+        headers.put("content-length", String.valueOf(body.length));
+        if (code == 200 || code == 206) {
+            headers.put("accept-ranges", "bytes");
+        }
+        if (route.etag != null) {
+            headers.put("etag", route.etag);
+        }
+        if (contentRange != null) {
+            headers.put("content-range", contentRange);
+        }
+
+        long rate = bandwidth > 0 && chance(slowRate) ? Math.max(1, bandwidth / 10) : bandwidth;
+        return new FakeResponse(code, headers, new FakeBody(this, body, length, rate));
+    }
+
+    /**
+     * Get the range asked for by a Range header of the form {@code bytes=N-}
+     * or {@code bytes=N-M}, which are the only forms supported.
+     *
+     * @param range the header, or null
+     * @param length the length of the body
+     * @return the first and last byte of the range, or null if no range that
+     *         can be satisfied was asked for
+     */
+    private static long[] getRange(String range, long length) {
+        if (range == null || !range.startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] parts = range.substring(6).split("-", -1);
+        if (parts.length != 2) {
+            return null;
+        }
+
+        try {
+            long first = Long.parseLong(parts[0].trim());
+            long last = parts[1].trim().isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(parts[1].trim()));
+            return first < length && first <= last ? new long[] { first, last } : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Queue the given number of bytes on the shared link and wait until they
+     * have been sent.
+     *
+     * @param bytes the number of bytes
+     * @throws InterruptedIOException on interruption
+     */
+    private void useLink(long bytes) throws InterruptedIOException {
+        long rate = linkBandwidth;
+        if (rate <= 0) {
+            return;
+        }
+
+        long due;
+        synchronized (linkLock) {
+            linkFreeAt = Math.max(System.nanoTime(), linkFreeAt) + bytes * 1000000000L / rate;
+            due = linkFreeAt;
+        }
+
+        sleep((due - System.nanoTime()) / 1000000);
+    }
+
+    private boolean chance(double rate) {
+        if (rate <= 0) {
+            return false;
+        }
+
+        synchronized (random) {
+            return random.nextDouble() < rate;
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * A canned response.
+     */
+    public static class Route {
+        private final byte[] body;
+        private final Map<String, String> headers = new ConcurrentHashMap<String, String>();
+        private volatile int code = 200;
+        private volatile String etag;
+        private volatile long latency;
+        private int failures;
+
+        private Route(byte[] body) {
+            this.body = body;
+        }
+
+        /**
+         * Create a route that can be used as the default route.
+         *
+         * @param body the body
+         * @return the route
+         */
+        public static Route of(@NonNull byte[] body) {
+            return new Route(body);
+        }
+
+        /**
+         * Set the response code.
+         *
+         * @param code the response code
+         * @return this object
+         */
+        public Route code(int code) {
+            this.code = code;
+            return this;
+        }
+
+        /**
+         * Add a response header.
+         *
+         * @param name the name
+         * @param value the value
+         * @return this object
+         */
+        public Route header(String name, String value) {
+            headers.put(name.toLowerCase(), value);
+            return this;
+        }
+
+        /**
+         * Set the ETag, which lets conditional requests get a 304 response.
+         *
+         * @param etag the ETag, including quotes
+         * @return this object
+         */
+        public Route etag(String etag) {
+            this.etag = etag;
+            return this;
+        }
+
+        /**
+         * Add to the latency of the transport for this route, as for a
+         * server that is further away.
+         *
+         * @param latency the extra latency in milliseconds
+         * @return this object
+         */
+        public Route latency(long latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * Fail the next given number of requests for this route.
+         *
+         * @param failures the number of requests to fail
+         * @return this object
+         */
+        public synchronized Route failures(int failures) {
+            this.failures = failures;
+            return this;
+        }
+
+        private synchronized boolean takeFailure() {
+            if (failures > 0) {
+                failures--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class FakeResponse implements Response {
+        private final int code;
+        private final Map<String, String> headers;
+        private final InputStream body;
+
+        private FakeResponse(int code, Map<String, String> headers, InputStream body) {
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close(boolean abort) {
+            if (abort && body instanceof FakeBody) {
+                ((FakeBody) body).closed = true;
+            }
+        }
+    }
+
+    /**
+     * Reads a body no faster than a given rate, failing once a given length
+     * has been read if that is short of the whole body.
+     */
+    private static class FakeBody extends InputStream {
+        private final FakeHttpTransport transport;
+        private final byte[] data;
+        private final int length;
+        private final long bandwidth;
+        private long started = -1;
+        private int position;
+        private volatile boolean closed;
+
+        private FakeBody(FakeHttpTransport transport, byte[] data, int length, long bandwidth) {
+            this.transport = transport;
+            this.data = data;
+            this.length = length;
+            this.bandwidth = bandwidth;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Connection was aborted");
+            }
+
+            if (position >= data.length) {
+                return -1;
+            }
+
+            if (position >= length) {
+                throw new EOFException("Injected truncation after " + position + " of " + data.length + " bytes");
+            }
+
+            if (started < 0) {
+                started = System.nanoTime();
+            }
+
+            int count = Math.min(len, length - position);
+
+            if (bandwidth > 0) {
+                // Hand out at most a tenth of a second's worth at a time
+                count = (int) Math.min(count, Math.max(1, bandwidth / 10));
+                long due = (position + count) * 1000L / bandwidth;
+                long elapsed = (System.nanoTime() - started) / 1000000;
+                sleep(due - elapsed);
+            }
+
+            transport.useLink(count);
+
+            System.arraycopy(data, position, b, off, count);
+            position += count;
+            transport.byteCount.addAndGet(count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return bandwidth > 0 ? 0 : length - position;
+        }
+    }
+
+}
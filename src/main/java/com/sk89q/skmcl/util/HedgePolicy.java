@@ -0,0 +1,153 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a transfer that is taking too long should be raced by a
+ * duplicate request, and keeps count of how that went.
+ *
+ * <p>The durations of finished transfers are kept per size class, where each
+ * class holds sizes within a factor of two of each other. A transfer is
+ * hedged once it has run for longer than the 95th percentile of the recent
+ * transfers of its size class, as long as enough of them have been seen to
+ * know the percentile. Hedges are limited to a fraction of the transfers that
+ * have been started, so that hedging adds little load even when many
+ * transfers are slow.</p>
+ */
+public class HedgePolicy {
+
+    private static final int SIZE_CLASSES = 48;
+    private static final int WINDOW = 100;
+    private static final int MIN_SAMPLES = 20;
+    private static final double PERCENTILE = 0.95;
+
+    private final long[][] durations = new long[SIZE_CLASSES][WINDOW];
+    private final int[] counts = new int[SIZE_CLASSES];
+    @Getter
+    private final double budgetRatio;
+    @Getter
+    private final long minDelay;
+    @Getter
+    private int transfers;
+    @Getter
+    private int hedges;
+    @Getter
+    private int wins;
+    @Getter
+    private long savedMillis;
+
+    /**
+     * Create a new policy.
+     *
+     * @param budgetRatio the most hedges per transfer started
+     * @param minDelay the least time in milliseconds that a transfer runs
+     *                 before it is hedged
+     */
+    public HedgePolicy(double budgetRatio, long minDelay) {
+        this.budgetRatio = budgetRatio;
+        this.minDelay = minDelay;
+    }
+
+    /**
+     * Record that a transfer was started.
+     */
+    public synchronized void recordStart() {
+        transfers++;
+    }
+
+    /**
+     * Record the duration of a transfer that finished without being hedged,
+     * or whose first request won.
+     *
+     * @param size the size of the file
+     * @param millis the duration in milliseconds
+     */
+    public synchronized void recordDuration(long size, long millis) {
+        if (size < 0) {
+            return;
+        }
+
+        int sizeClass = getSizeClass(size);
+        durations[sizeClass][counts[sizeClass]++ % WINDOW] = millis;
+    }
+
+    /**
+     * Get how long a transfer of the given size may run before it is hedged.
+     *
+     * @param size the size of the file, or -1 if it is not known
+     * @return the time in milliseconds, or -1 if not enough is known
+     */
+    public synchronized long getDelay(long size) {
+        if (size < 0) {
+            return -1;
+        }
+
+        int sizeClass = getSizeClass(size);
+        int count = Math.min(counts[sizeClass], WINDOW);
+        if (count < MIN_SAMPLES) {
+            return -1;
+        }
+
+        long[] sorted = Arrays.copyOf(durations[sizeClass], count);
+        Arrays.sort(sorted);
+        return Math.max(minDelay, sorted[(int) Math.ceil(count * PERCENTILE) - 1]);
+    }
+
+    /**
+     * Take a hedge from the budget, if there is one left.
+     *
+     * @return true if a hedge may be sent
+     */
+    public synchronized boolean tryHedge() {
+        if (hedges + 1 > Math.max(1, transfers * budgetRatio)) {
+            return false;
+        }
+
+        hedges++;
+        return true;
+    }
+
+    /**
+     * Record that a hedge finished before the request it raced.
+     *
+     * @param savedMillis the estimated time saved in milliseconds, or -1 if
+     *                    it is not known
+     */
+    public synchronized void recordWin(long savedMillis) {
+        wins++;
+        if (savedMillis > 0) {
+            this.savedMillis += savedMillis;
+        }
+    }
+
+    private static int getSizeClass(long size) {
+        return Math.min(SIZE_CLASSES - 1, 64 - Long.numberOfLeadingZeros(size));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d of %d transfers hedged (%.1f%%), %d won, saving about %d ms",
+                hedges, transfers, transfers > 0 ? hedges * 100.0 / transfers : 0, wins, savedMillis);
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checks that the certificate of a TLS session was issued for the host that
+ * was connected to, following RFC 2818: the DNS names of the certificate are
+ * used if it has any, or else its common name, and a wildcard may stand for
+ * the leftmost label of a name. IP addresses must be listed as such.
+ *
+ * <p>This is done by hand because the engine can only be asked to check the
+ * host from Java 7 on.</p>
+ */
+final class HostnameChecker {
+
+    private static final int DNS_NAME = 2;
+    private static final int IP_ADDRESS = 7;
+
+    private HostnameChecker() {
+    }
+
+    /**
+     * Check that the peer certificate of the given session matches the host.
+     *
+     * @param host the host that was connected to
+     * @param session the session, after its handshake
+     * @throws SSLPeerUnverifiedException if it does not match
+     */
+    public static void verify(String host, SSLSession session) throws SSLPeerUnverifiedException {
+        Certificate[] certificates = session.getPeerCertificates();
+        if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+            throw new SSLPeerUnverifiedException("No certificate was given by " + host);
+        }
+
+        if (!matches(host, (X509Certificate) certificates[0])) {
+            throw new SSLPeerUnverifiedException("The certificate given by " + host + " is not for that host");
+        }
+    }
+
+    /**
+     * Get whether the given certificate was issued for the given host.
+     *
+     * @param host the host
+     * @param certificate the certificate
+     * @return true if it was
+     */
+    public static boolean matches(String host, X509Certificate certificate) {
+        boolean address = isAddress(host);
+        List<String> names = new ArrayList<String>();
+        Collection<List<?>> alternatives;
+
+        try {
+            alternatives = certificate.getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            return false;
+        }
+
+        if (alternatives != null) {
+            for (List<?> alternative : alternatives) {
+                int type = ((Number) alternative.get(0)).intValue();
+                if (type == (address ? IP_ADDRESS : DNS_NAME)) {
+                    names.add((String) alternative.get(1));
+                } else if (type == DNS_NAME) {
+                    // The common name is only used when no DNS name is given
+                    names.add(null);
+                }
+            }
+        }
+
+        if (address) {
+            return names.contains(host);
+        }
+
+        if (names.isEmpty()) {
+            String commonName = getCommonName(certificate);
+            if (commonName != null) {
+                names.add(commonName);
+            }
+        }
+
+        for (String name : names) {
+            if (name != null && matches(host, name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get whether the given host matches a name of a certificate, which may
+     * start with a wildcard label.
+     *
+     * @param host the host
+     * @param name the name
+     * @return true if it does
+     */
+    static boolean matches(String host, String name) {
+        host = trimDot(host.toLowerCase(Locale.ENGLISH));
+        name = trimDot(name.toLowerCase(Locale.ENGLISH));
+
+        if (!name.startsWith("*.")) {
+            return host.equals(name);
+        }
+
+        // The wildcard stands for exactly one label, and not for most of a domain
+        String suffix = name.substring(1);
+        int dot = host.indexOf('.');
+        return dot > 0 && host.substring(dot).equals(suffix) && suffix.indexOf('.', 1) > 0;
+    }
+
+    private static String getCommonName(X509Certificate certificate) {
+        try {
+            LdapName subject = new LdapName(certificate.getSubjectX500Principal().getName());
+            // The most specific name comes last
+            for (int i = subject.size() - 1; i >= 0; i--) {
+                Rdn rdn = subject.getRdns().get(i);
+                if (rdn.getType().equalsIgnoreCase("CN")) {
+                    return rdn.getValue().toString();
+                }
+            }
+        } catch (InvalidNameException ignored) {
+        }
+        return null;
+    }
+
+    private static boolean isAddress(String host) {
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    private static String trimDot(String name) {
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+}
@@ -0,0 +1,411 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.java.Log;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.codehaus.jackson.annotate.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.logging.Level;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+/**
+ * An on-disk cache of responses to GET requests, which are revalidated with
+ * the server using their ETag or Last-Modified validators.
+ *
+ * <p>Requests only use the cache if they opt in with {@link HttpRequest#cache(HttpCache)}
+ * or {@link HttpRequest#cached()}. Bodies are stored decoded, and the least
+ * recently used entries are evicted once the total size of the stored bodies
+ * exceeds the size limit.</p>
+ */
+@Log
+public class HttpCache {
+
+    private static HttpCache defaultCache;
+
+    @Getter
+    private final File dir;
+    @Getter @Setter
+    private long maxSize;
+    private LinkedHashMap<String, Entry> entries;
+    private long size;
+
+    /**
+     * Create a new cache.
+     *
+     * @param dir the directory to store responses in
+     * @param maxSize the maximum total size of stored responses in bytes
+     */
+    public HttpCache(@NonNull File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the entry for the given URL.
+     *
+     * @param url the URL
+     * @return the entry, or null if the URL is not cached
+     */
+    synchronized Entry get(URL url) {
+        load();
+
+        String key = getKey(url);
+        Entry entry = entries.get(key);
+
+        if (entry != null && !getBodyFile(key).exists()) {
+            remove(key);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Open the stored body of an entry as a response.
+     *
+     * @param entry the entry
+     * @return the response
+     * @throws IOException on I/O error
+     */
+    HttpTransport.Response open(Entry entry) throws IOException {
+        File file = getBodyFile(getKey(entry.getUrl()));
+        final InputStream in = new FileInputStream(file);
+        final long length = file.length();
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        headers.put("content-length", String.valueOf(length));
+        if (entry.getEtag() != null) {
+            headers.put("etag", entry.getEtag());
+        }
+        if (entry.getLastModified() != null) {
+            headers.put("last-modified", entry.getLastModified());
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+
+        return new HttpTransport.Response() {
+            @Override
+            public int getResponseCode() {
+                return 200;
+            }
+
+            @Override
+            public String getHeaderField(String name) {
+                return headers.get(name.toLowerCase());
+            }
+
+            @Override
+            public InputStream getBody() {
+                return in;
+            }
+
+            @Override
+            public void close(boolean abort) {
+                closeQuietly(in);
+            }
+        };
+    }
+
+    /**
+     * Start storing the body of a response, if it can be revalidated later.
+     *
+     * @param url the URL that was requested
+     * @param response the response
+     * @return a writer, or null if the response cannot be cached
+     */
+    Writer store(URL url, HttpTransport.Response response) {
+        String etag = response.getHeaderField("ETag");
+        String lastModified = response.getHeaderField("Last-Modified");
+        String cacheControl = response.getHeaderField("Cache-Control");
+
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+            return null;
+        }
+
+        Entry entry = new Entry();
+        entry.setUrl(url.toString());
+        entry.setEtag(etag);
+        entry.setLastModified(lastModified);
+
+        try {
+            dir.mkdirs();
+            return new Writer(entry, File.createTempFile("response", ".tmp", dir));
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Failed to create a temporary file in the HTTP cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Add a stored response to the cache, replacing any existing entry.
+     *
+     * @param entry the entry
+     * @param temp the file containing the body
+     * @throws IOException on I/O error
+     */
+    private synchronized void commit(Entry entry, File temp) throws IOException {
+        load();
+
+        String key = getKey(entry.getUrl());
+        remove(key);
+
+        if (temp.length() > maxSize) {
+            temp.delete(); // Would push out everything else
+            return;
+        }
+
+        File body = getBodyFile(key);
+        if (!temp.renameTo(body)) {
+            throw new IOException("Failed to rename " + temp + " to " + body);
+        }
+
+        entry.setSize(body.length());
+        Codecs.getWriter().writeValue(getEntryFile(key), entry);
+        entries.put(key, entry);
+        size += entry.getSize();
+
+        evict();
+    }
+
+    /**
+     * Remove the least recently used entries until the cache fits its size limit.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue().getSize();
+            getBodyFile(eldest.getKey()).delete();
+            getEntryFile(eldest.getKey()).delete();
+        }
+    }
+
+    private void remove(String key) {
+        Entry existing = entries.remove(key);
+        if (existing != null) {
+            size -= existing.getSize();
+        }
+        getBodyFile(key).delete();
+        getEntryFile(key).delete();
+    }
+
+    /**
+     * Read the index of the cache from disk, if it has not been read yet.
+     */
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+
+        // Access-ordered, so iteration starts at the least recently used entry
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        size = 0;
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> bodies = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(".dat")) {
+                bodies.add(file);
+            } else if (file.getName().endsWith(".tmp")) {
+                file.delete(); // Left over from an interrupted download
+            }
+        }
+
+        Collections.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                long a = o1.lastModified(), b = o2.lastModified();
+                return a < b ? -1 : (a > b ? 1 : 0);
+            }
+        });
+
+        for (File body : bodies) {
+            String key = body.getName().substring(0, body.getName().length() - 4);
+
+            try {
+                Entry entry = Codecs.getReader(Entry.class).readValue(getEntryFile(key));
+                entry.setSize(body.length());
+                entries.put(key, entry);
+                size += entry.getSize();
+            } catch (IOException e) {
+                body.delete();
+            }
+        }
+
+        evict();
+    }
+
+    private File getBodyFile(String key) {
+        return new File(dir, key + ".dat");
+    }
+
+    private File getEntryFile(String key) {
+        return new File(dir, key + ".json");
+    }
+
+    private static String getKey(URL url) {
+        return getKey(url.toString());
+    }
+
+    private static String getKey(String url) {
+        return DigestUtils.shaHex(url);
+    }
+
+    /**
+     * Get the cache used by {@link HttpRequest#cached()}.
+     *
+     * @return the cache, or null if there is none
+     */
+    public static synchronized HttpCache getDefault() {
+        return defaultCache;
+    }
+
+    /**
+     * Set the cache used by {@link HttpRequest#cached()}.
+     *
+     * @param cache the cache, or null to disable caching
+     */
+    public static synchronized void setDefault(HttpCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * The validators of a stored response.
+     */
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Entry {
+        private String url;
+        private String etag;
+        private String lastModified;
+        @JsonIgnore
+        private long size;
+    }
+
+    /**
+     * Copies a response body into the cache as it is read.
+     */
+    class Writer {
+        private final Entry entry;
+        private final File temp;
+        private OutputStream out;
+        private InputStream in;
+        private boolean complete;
+
+        private Writer(Entry entry, File temp) throws IOException {
+            this.entry = entry;
+            this.temp = temp;
+            this.out = new BufferedOutputStream(new FileOutputStream(temp));
+        }
+
+        /**
+         * Wrap the body so that everything read from it is also stored.
+         *
+         * @param body the decoded body
+         * @return the wrapped stream
+         */
+        InputStream wrap(InputStream body) {
+            in = new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b == -1) {
+                        complete = true;
+                    } else if (out != null) {
+                        out.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read == -1) {
+                        complete = true;
+                    } else if (out != null) {
+                        out.write(b, off, read);
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    byte[] buffer = new byte[(int) Math.min(n, 1024)];
+                    int read = read(buffer, 0, buffer.length);
+                    return Math.max(read, 0);
+                }
+            };
+
+            return in;
+        }
+
+        /**
+         * Read the rest of a body that was not read to the end, up to the drain
+         * limit of the connection pool, and add the response to the cache if
+         * the whole body was stored.
+         */
+        void finish() {
+            try {
+                long limit = HttpConnectionPool.getInstance().getDrainLimit();
+
+                if (!complete && !BufferPool.getInstance().drain(in, limit)) {
+                    discard();
+                    return;
+                }
+
+                out.close();
+                out = null;
+                commit(entry, temp);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to store " + entry.getUrl() + " in the HTTP cache", e);
+                discard();
+            }
+        }
+
+        /**
+         * Throw away what has been stored.
+         */
+        void discard() {
+            closeQuietly(out);
+            out = null;
+            temp.delete();
+        }
+    }
+
+}
@@ -0,0 +1,345 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sk89q.skmcl.util.LauncherUtils.getSystemProperty;
+
+/**
+ * Manages the reuse of persistent connections made by {@link HttpRequest}.
+ *
+ * <p>Idle connections are parked per host in the keep-alive cache of
+ * {@link HttpURLConnection}, which only takes a connection back if its response
+ * body was read to the end and closed, rather than disconnected. This class
+ * decides whether a finished request is drained and returned or torn down, limits
+ * the number of simultaneous connections to a single host, and counts new
+ * connections and TLS handshakes so that the hit rate of the pool can be
+ * measured.</p>
+ *
+ * <p>Defaults can be changed with the system properties
+ * {@code com.sk89q.skmcl.util.HttpConnectionPool.maxIdle},
+ * {@code .maxPerHost}, {@code .drainLimit} and {@code .keepAlive}.</p>
+ */
+public class HttpConnectionPool {
+
+    private static final HttpConnectionPool instance = new HttpConnectionPool();
+
+    private final Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+    private final CountingSocketFactory socketFactory;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong secureRequests = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    @Getter @Setter
+    private boolean keepAlive;
+    @Getter
+    private int maxIdle;
+    @Getter
+    private int maxPerHost;
+    @Getter @Setter
+    private long drainLimit;
+
+    /**
+     * Create a new pool.
+     */
+    HttpConnectionPool() {
+        Class<?> cls = HttpConnectionPool.class;
+        keepAlive = !"false".equalsIgnoreCase(System.getProperty(cls.getCanonicalName() + ".keepAlive"));
+        maxPerHost = (int) getSystemProperty(cls, "maxPerHost", 16);
+        drainLimit = getSystemProperty(cls, "drainLimit", 1024 * 64);
+        setMaxIdle((int) getSystemProperty(cls, "maxIdle", 8));
+        socketFactory = new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+    }
+
+    /**
+     * Set the maximum number of idle connections kept alive per host.
+     *
+     * <p>The keep-alive cache reads this limit once, so it only takes effect if
+     * it is set before the first HTTP connection is made. Idle connections are
+     * evicted by the keep-alive cache once the timeout given by the server's
+     * Keep-Alive header (or five seconds) lapses.</p>
+     *
+     * @param maxIdle the maximum number of idle connections per host
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+        System.setProperty("http.keepAlive", keepAlive ? "true" : "false");
+        System.setProperty("http.maxConnections", String.valueOf(Math.max(1, maxIdle)));
+    }
+
+    /**
+     * Set the maximum number of connections open to a single host at once.
+     *
+     * <p>Hosts that already have connections open keep their current limit.</p>
+     *
+     * @param maxPerHost the limit, or 0 for no limit
+     */
+    public void setMaxPerHost(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Wait until a connection may be opened to the host of the given URL.
+     *
+     * @param url the URL
+     * @return the permit, which must be passed to {@link #release(Semaphore)}, or null
+     * @throws InterruptedIOException thrown on interruption
+     */
+    Semaphore acquire(URL url) throws InterruptedIOException {
+        Semaphore permit;
+
+        synchronized (hostPermits) {
+            if (maxPerHost <= 0) {
+                return null;
+            }
+
+            String key = url.getHost() + ":" + url.getPort();
+            permit = hostPermits.get(key);
+            if (permit == null) {
+                permit = new Semaphore(maxPerHost, true);
+                hostPermits.put(key, permit);
+            }
+        }
+
+        try {
+            permit.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+
+        return permit;
+    }
+
+    /**
+     * Release a permit returned by {@link #acquire(URL)}.
+     *
+     * @param permit the permit, or null
+     */
+    void release(Semaphore permit) {
+        if (permit != null) {
+            permit.release();
+        }
+    }
+
+    /**
+     * Prepare a new connection before it is connected.
+     *
+     * @param conn the connection
+     */
+    void configure(@NonNull HttpURLConnection conn) {
+        recordRequest(conn instanceof HttpsURLConnection);
+
+        if (conn instanceof HttpsURLConnection) {
+            // The keep-alive cache only hands out connections made by the same factory
+            ((HttpsURLConnection) conn).setSSLSocketFactory(socketFactory);
+        }
+    }
+
+    /**
+     * Record that a request was made.
+     *
+     * @param secure true if the request was made over TLS
+     */
+    void recordRequest(boolean secure) {
+        requests.incrementAndGet();
+        if (secure) {
+            secureRequests.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a new TLS connection was opened.
+     */
+    void recordConnection() {
+        connections.incrementAndGet();
+    }
+
+    /**
+     * Record that a TLS handshake was completed.
+     */
+    void recordHandshake() {
+        handshakes.incrementAndGet();
+    }
+
+    /**
+     * Finish with a connection, returning it to the pool if its response has been
+     * (or can cheaply be) read in full, or otherwise closing it.
+     *
+     * @param conn the connection
+     * @param inputStream the response stream, or null to close the connection outright
+     */
+    void recycle(@NonNull HttpURLConnection conn, InputStream inputStream) {
+        if (keepAlive && inputStream != null) {
+            try {
+                if (BufferPool.getInstance().drain(inputStream, drainLimit)) {
+                    inputStream.close();
+                    returned.incrementAndGet();
+                    return;
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        discarded.incrementAndGet();
+        conn.disconnect();
+    }
+
+    /**
+     * Get the number of requests made.
+     *
+     * @return the number of requests
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Get the number of new TLS connections opened.
+     *
+     * @return the number of connections
+     */
+    public long getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * Get the number of completed TLS handshakes.
+     *
+     * @return the number of handshakes
+     */
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /**
+     * Get the fraction of HTTPS requests that were served by a pooled connection.
+     *
+     * @return a number between 0 and 1, or -1 if no HTTPS requests were made
+     */
+    public double getHitRate() {
+        long total = secureRequests.get();
+        if (total == 0) {
+            return -1;
+        }
+        return Math.max(0, total - connections.get()) / (double) total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HttpConnectionPool{requests=%d, secureRequests=%d, " +
+                "connections=%d, handshakes=%d, hitRate=%.2f, returned=%d, discarded=%d}",
+                requests.get(), secureRequests.get(), connections.get(), handshakes.get(),
+                getHitRate(), returned.get(), discarded.get());
+    }
+
+    /**
+     * Get the shared pool.
+     *
+     * @return the pool
+     */
+    public static HttpConnectionPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Counts the TLS connections and handshakes made through a delegate factory.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory implements HandshakeCompletedListener {
+        private final SSLSocketFactory delegate;
+
+        private CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private Socket track(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                recordConnection();
+                ((SSLSocket) socket).addHandshakeCompletedListener(this);
+            }
+            return socket;
+        }
+
+        @Override
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            recordHandshake();
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return track(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return track(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return track(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return track(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return track(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+}
@@ -18,6 +18,12 @@
 
 package com.sk89q.skmcl.util;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sk89q.skmcl.concurrent.AbstractWorker;
 import com.sk89q.skmcl.concurrent.SwingProgressObserver;
 import com.sk89q.skmcl.concurrent.WorkUnit;
@@ -36,40 +42,119 @@ import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static com.sk89q.skmcl.util.LauncherUtils.checkInterrupted;
 import static com.sk89q.skmcl.util.SharedLocale._;
 
 /**
  * Downloads multiple files from HTTP URLs.
  *
  * <ul>
- *     <li>On failure of a download, a defined delay will occur and retries will be
- *     attempted up until the retry limit.</li>
- *     <li>Multiple downloads can occur asynchronously, and all downloads will be
- *     attempted even if all failed.</li>
+ *     <li>On failure of a download, it is retried after a growing, jittered delay
+ *     as the {@link RetryPolicy} allows. Once a host is down, the
+ *     {@link CircuitBreaker} of the host makes the remaining downloads from it
+ *     fail right away.</li>
+ *     <li>If the URL of a file has mirrors in the default {@link MirrorList},
+ *     they are tried fastest first, and a failed attempt moves on to the next
+ *     mirror right away before the retry policy is consulted.</li>
+ *     <li>A partly downloaded file is kept, and later attempts, including those of
+ *     later sessions, ask the server for only the rest of it.</li>
+ *     <li>If a checksum is given for a file, it is computed as the file is
+ *     written, and a file that does not match is downloaded again.</li>
+ *     <li>Progress is weighted by the size of each file, which is taken from
+ *     the response once it arrives, or else from the size given on submission,
+ *     or else is assumed to be the average of the known sizes. The status shows
+ *     a smoothed throughput and the estimated time left.</li>
+ *     <li>Files larger than the segment size, as given on submission or else as
+ *     shown by the response, are fetched in segments over several
+ *     connections at once, if the server supports ranges. The number of
+ *     connections grows while it raises the throughput of the file.</li>
+ *     <li>A file fetched over one connection that takes longer than most of its
+ *     size is raced by a second request while there are free slots, as the
+ *     {@link HedgePolicy} allows, and the first complete copy is kept.</li>
+ *     <li>Multiple downloads can occur asynchronously, and unless failing fast,
+ *     all downloads will be attempted even if all failed.</li>
+ *     <li>Files waiting to start are started in order of their
+ *     {@link DownloadPriority}, and then largest first, with files of unknown
+ *     size before any other, so that a large file submitted last does not run
+ *     alone after everything else has finished. While more urgent files are
+ *     waiting or in flight, and at all times until {@link #call()}, the files
+ *     of each priority may only fill a share of the concurrency limit, so that
+ *     urgent files get most of the link and can start as soon as they are
+ *     submitted.</li>
+ *     <li>The number of downloads in flight at once is set by a
+ *     {@link ConcurrencyController}, which raises it while that keeps raising
+ *     throughput and cuts it when requests fail or start to queue. An attempt
+ *     only takes a thread of the executor once it may start, and a retry
+ *     waits on a timer, so no thread is held while waiting.</li>
+ *     <li>Files submitted more than once with the same URL or ID are downloaded
+ *     once, and the file is shared until every submitter has called
+ *     {@link #release(File)}.</li>
  *     <li>After all files are downloaded, an exception will be raised for the first
- *     file that failed to download.</li>
+ *     file that failed to download. If {@link #isFailFast() fail-fast} is on,
+ *     a file whose {@link DownloadPriority} is needed to launch that fails for
+ *     good instead cancels every other download at once and releases the
+ *     executor, keeping partly downloaded files to be resumed later; other
+ *     files are downloaded on a best-effort basis.</li>
  *     <li>As a {@link Callable}, an instance will return a list of {@link Future} for
  *     each file that was downloaded (or attempted).</li>
  * </ul>
+ *
+ * <p>If the default transport of {@link HttpRequest} is an
+ * {@link AsyncHttpTransport}, downloads are carried out by the transport and the
+ * executor is not used. Such downloads use a single connection per file. They
+ * are not used while the bandwidth of the downloader is limited, because the
+ * transport cannot be made to wait.</p>
+ *
+ * <p>Bodies are read under the {@link BandwidthLimiter.Job} of the thread that
+ * created the downloader, unless another is set.</p>
  */
 public class HttpDownloader
         extends AbstractWorker<List<Future<HttpDownloader.RemoteFile>>>
         implements ProgressUpdater {
 
     private static final Logger logger = LauncherUtils.getLogger(HttpDownloader.class);
+    private static final double THROUGHPUT_SMOOTHING = 5;
+    private static final long HEDGE_CHECK_INTERVAL = 100;
+    private static final Timer retryTimer = new Timer("HttpDownloader retries", true);
+    private static final ExecutorService segmentExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("HttpDownloader segment %d").build());
 
     private final ExecutorService executor;
+    @Getter
+    private final ConcurrencyController concurrency;
     private final List<Future<RemoteFile>> executed = new ArrayList<Future<RemoteFile>>();
     private final List<RemoteFile> active = new ArrayList<RemoteFile>();
-    private final Set<String> usedHashes = new HashSet<String>();
+    private final Map<File, RemoteFile> submitted = new HashMap<File, RemoteFile>();
+    private final List<RemoteFile> files = new ArrayList<RemoteFile>();
+    private int sharedCount;
     private int numProcessed;
+    private long lastSampleAt;
+    private long lastTransferred;
+    private volatile double throughput = -1;
+    private volatile long remainingBytes = -1;
     @Getter @Setter
     private boolean overwrite = false;
     @Getter @Setter
-    private int retryDelay = 2000;
+    private BandwidthLimiter.Job bandwidthJob = BandwidthLimiter.getCurrentJob();
+    @Getter @Setter
+    private HedgePolicy hedgePolicy = new HedgePolicy(0.1, 1000);
+    @Getter @Setter
+    private RetryPolicy retryPolicy = new RetryPolicy(
+            LauncherUtils.getSystemProperty(HttpDownloader.class, "retryDelay", 1000),
+            LauncherUtils.getSystemProperty(HttpDownloader.class, "maxRetryDelay", 10000),
+            (int) LauncherUtils.getSystemProperty(HttpDownloader.class, "tryCount", 5), 0.5, 10);
+    @Getter @Setter
+    private long minThroughput = 1024;
+    @Getter @Setter
+    private long stallWindow = 30000;
     @Getter @Setter
-    private int tryCount = 3;
+    private long segmentSize = 1024 * 1024 * 2;
+    @Getter @Setter
+    private int maxSegments = 4;
+    @Getter @Setter
+    private boolean largestFirst = true;
+    @Getter @Setter
+    private boolean failFast = true;
+    private Throwable failure;
 
     /**
      * Create a new downloader using the given executor.
@@ -78,68 +163,307 @@ public class HttpDownloader
      */
     public HttpDownloader(ExecutorService executor) {
         this.executor = executor;
+        this.concurrency = new ConcurrencyController(
+                (int) LauncherUtils.getSystemProperty(HttpDownloader.class, "minConcurrency", 2),
+                (int) LauncherUtils.getSystemProperty(HttpDownloader.class, "initialConcurrency", 6),
+                getDefaultMaxConcurrency());
+
+        for (DownloadPriority priority : DownloadPriority.values()) {
+            concurrency.setShare(priority.ordinal(), priority.getShare());
+        }
+        concurrency.setReserving(true);
+    }
+
+    /**
+     * Get the most downloads that are allowed in flight at once, which is
+     * also the number of threads that the executor should have.
+     *
+     * @return the number of downloads
+     */
+    public static int getDefaultMaxConcurrency() {
+        return (int) LauncherUtils.getSystemProperty(HttpDownloader.class, "maxConcurrency", 32);
     }
 
     /**
      * Submit a file to be downloaded.
      *
+     * <p>If the same URL or ID was already submitted, the existing download is
+     * shared and its destination file is returned. Each submitter should read
+     * the file into a place of its own and then call {@link #release(File)}.</p>
+     *
      * @param baseDir the base directory to store downloaded files
      * @param url the URL to download from
      * @param versionId a unique ID to identify this URL and version, or null to use URL
      * @return the destination file
      */
     public File submit(File baseDir, URL url, String versionId) {
-        String id = makeHashUnique(
-                DigestUtils.shaHex(versionId != null ? versionId : url.toString()));
+        return submit(baseDir, url, versionId, null, -1);
+    }
+
+    /**
+     * Submit a file to be downloaded and checked against a checksum.
+     *
+     * @param baseDir the base directory to store downloaded files
+     * @param url the URL to download from
+     * @param versionId a unique ID to identify this URL and version, or null to use URL
+     * @param checksum the MD5 or SHA-1 checksum of the file in hex, or null to not check
+     * @param size the expected size of the file in bytes, or -1 if it is not known
+     * @return the destination file
+     * @see #submit(File, URL, String)
+     */
+    public File submit(File baseDir, URL url, String versionId, String checksum, long size) {
+        return submit(baseDir, url, versionId, checksum, size, DownloadPriority.REQUIRED);
+    }
+
+    /**
+     * Submit a file to be downloaded and checked against a checksum.
+     *
+     * <p>Files start in order of priority, and then largest first. A file
+     * that was already submitted with a lower priority gets the given
+     * priority for its later attempts.</p>
+     *
+     * @param baseDir the base directory to store downloaded files
+     * @param url the URL to download from
+     * @param versionId a unique ID to identify this URL and version, or null to use URL
+     * @param checksum the MD5 or SHA-1 checksum of the file in hex, or null to not check
+     * @param size the expected size of the file in bytes, or -1 if it is not known
+     * @param priority how soon the file is needed
+     * @return the destination file
+     * @see #submit(File, URL, String)
+     */
+    public File submit(File baseDir, URL url, String versionId, String checksum, long size,
+                       DownloadPriority priority) {
+        String id = DigestUtils.shaHex(versionId != null ? versionId : url.toString());
         String dir = id.substring(0, 1);
         File file = new File(baseDir, dir + "/" + id);
+        RemoteFile remoteFile;
+
+        synchronized (submitted) {
+            remoteFile = submitted.get(file);
+            if (remoteFile != null) {
+                remoteFile.consumers++;
+                sharedCount++;
+                if (priority.compareTo(remoteFile.priority) < 0) {
+                    remoteFile.priority = priority;
+                }
+                logger.log(Level.FINE, "{0} is already being downloaded, so it will be shared", url);
+                return file;
+            }
+
+            remoteFile = new RemoteFile(file, url, Checksums.normalize(checksum), size, priority);
+            submitted.put(file, remoteFile);
+            files.add(remoteFile);
+        }
+
+        ListenableFuture<RemoteFile> future;
+
         synchronized (executed) {
-            executed.add(executor.submit(new RemoteFile(file, url)));
+            if (failure != null) {
+                future = Futures.immediateCancelledFuture();
+            } else {
+                future = remoteFile.start(
+                        HttpRequest.getDefaultTransport() instanceof AsyncHttpTransport && !isBandwidthLimited());
+            }
+            executed.add(future);
         }
+
+        watch(remoteFile, future);
         return file;
     }
 
     /**
-     * Make sure that we aren't re-using hash IDs.
+     * Give up on all other downloads if the given file fails to download and
+     * its priority calls for failing fast.
+     *
+     * @param remoteFile the file
+     * @param future the future of the download
+     */
+    private void watch(final RemoteFile remoteFile, ListenableFuture<RemoteFile> future) {
+        Futures.addCallback(future, new FutureCallback<RemoteFile>() {
+            @Override
+            public void onSuccess(RemoteFile result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (failFast && remoteFile.getPriority().isFailFast() &&
+                        !(t instanceof CancellationException) && !(t instanceof InterruptedException)) {
+                    abort(remoteFile, t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel every download that has not finished, because the given file
+     * could not be downloaded. Partly downloaded files are kept, so that
+     * they can be resumed later.
+     *
+     * @param remoteFile the file that failed
+     * @param t the error
+     */
+    private void abort(RemoteFile remoteFile, Throwable t) {
+        List<Future<RemoteFile>> futures;
+
+        synchronized (executed) {
+            if (failure != null) {
+                return;
+            }
+            failure = t;
+            futures = new ArrayList<Future<RemoteFile>>(executed);
+        }
+
+        logger.log(Level.WARNING, "Cancelling all downloads: {0}", t.getMessage());
+
+        concurrency.clearQueued();
+        for (Future<RemoteFile> future : futures) {
+            future.cancel(true);
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Get whether every download was cancelled because a file failed.
      *
-     * @param baseId the base ID
-     * @return a unique hash
+     * @return true if cancelled
      */
-    private String makeHashUnique(String baseId) {
-        String id = baseId;
-        int i = 0;
+    private boolean isAborted() {
+        synchronized (executed) {
+            return failure != null;
+        }
+    }
 
-        while (usedHashes.contains(id)) {
-            id = baseId + (i++);
+    /**
+     * Give up a hold on a file returned by {@link #submit(File, URL, String)}.
+     *
+     * <p>Once every submitter of the file has done so, the file is no longer
+     * needed by the downloader, and the caller that released it last can
+     * delete it or move it elsewhere.</p>
+     *
+     * @param file the file
+     * @return true if this was the last hold on the file
+     */
+    public boolean release(File file) {
+        synchronized (submitted) {
+            RemoteFile remoteFile = submitted.get(file);
+            if (remoteFile != null && --remoteFile.consumers > 0) {
+                return false;
+            }
+            submitted.remove(file);
+            return true;
         }
+    }
+
+    /**
+     * Get whether bodies are read under a bandwidth limit at the moment.
+     *
+     * @return true if limited
+     */
+    private boolean isBandwidthLimited() {
+        return bandwidthJob.getRate() > 0 || bandwidthJob.getLimiter().getRate() > 0;
+    }
 
-        usedHashes.add(id);
+    /**
+     * Get the smoothed rate at which bytes are being received.
+     *
+     * @return the rate in bytes per second, or -1 if it is not known yet
+     */
+    public double getThroughput() {
+        return throughput;
+    }
 
-        return id;
+    /**
+     * Get the estimated number of bytes left to download.
+     *
+     * @return the number of bytes, or -1 if it is not known yet
+     */
+    public long getRemainingBytes() {
+        return remainingBytes;
+    }
+
+    /**
+     * Get the number of bytes received for all files so far.
+     *
+     * @return the number of bytes
+     */
+    private long getTransferredBytes() {
+        long transferred = 0;
+        synchronized (submitted) {
+            for (RemoteFile file : files) {
+                transferred += file.getTransferredBytes();
+            }
+        }
+        return transferred;
     }
 
     @Override
     public List<Future<RemoteFile>> call() throws ExecutionException, InterruptedException {
-        executor.shutdown();
+        long startedAt = System.nanoTime();
+
+        // Nothing more is submitted, so no slots need to be kept free
+        concurrency.setReserving(false);
         TimerTask timerTask = SwingProgressObserver.updatePeriodically(this);
 
         try {
+            List<Future<RemoteFile>> futures;
+
+            synchronized (executed) {
+                futures = new ArrayList<Future<RemoteFile>>(executed);
+            }
+
             try {
-                while (!executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS));
+                // Retries may still need the executor until every download is done
+                for (Future<RemoteFile> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ignored) {
+                    } catch (CancellationException ignored) {
+                    }
+                }
             } catch (InterruptedException e) {
                 executor.shutdownNow();
+                synchronized (executed) {
+                    for (Future<RemoteFile> future : executed) {
+                        future.cancel(true);
+                    }
+                }
                 throw new InterruptedException();
             }
 
-            WorkUnit parts = split(1, executed.size());
+            executor.shutdown();
 
-            // Run through all the jobs to see whether any failed
+            long elapsed = Math.max(1, (System.nanoTime() - startedAt) / 1000000);
+            long transferred = getTransferredBytes();
+            if (transferred > 0) {
+                logger.log(Level.INFO, "Received {0} KB in {1} ms ({2} KB/s)",
+                        new Object[] { transferred / 1024, elapsed, transferred * 1000 / 1024 / elapsed });
+            }
+
+            logger.log(Level.INFO, "Download concurrency: {0}", concurrency);
+            logger.log(Level.INFO, "Download retries: {0}", retryPolicy);
+            logger.log(Level.INFO, "Download hedging: {0}", hedgePolicy);
+
+            synchronized (submitted) {
+                if (sharedCount > 0) {
+                    logger.log(Level.INFO, "{0} of {1} submitted files shared a download with another",
+                            new Object[] { sharedCount, sharedCount + futures.size() });
+                }
+            }
+
+            WorkUnit parts = split(1, futures.size());
+
+            // The failure that the other downloads were cancelled for comes first
             synchronized (executed) {
-                for (Future<RemoteFile> future : executed) {
-                    RemoteFile file = future.get();
+                if (failure != null) {
+                    throw new ExecutionException(failure);
                 }
             }
 
+            // Run through all the jobs to see whether any failed
+            for (Future<RemoteFile> future : futures) {
+                RemoteFile file = future.get();
+            }
+
             return executed;
         } finally {
             timerTask.cancel();
@@ -151,88 +475,875 @@ public class HttpDownloader
      * path to save the downloaded file to.
      */
     @ToString
-    public class RemoteFile implements Callable<RemoteFile> {
+    public class RemoteFile {
         @Getter
         private final File destination;
         @Getter
         private final URL url;
         @Getter
+        private final String checksum;
+        @Getter
+        private final long expectedSize;
+        @Getter
+        private volatile DownloadPriority priority;
+        private DownloadPriority running;
+        private boolean async;
+        private boolean attempted;
+        private Thread thread;
+        @Getter
         private HttpRequest httpRequest;
+        private SegmentedDownload segmented;
+        private int trial;
+        private long retryDelay;
+        private List<URL> mirrors;
+        private int mirror;
+        private int consumers = 1;
+        private volatile long transferredBefore;
+        private volatile long finishedSize = -1;
+        private volatile boolean finished;
 
-        private RemoteFile(File destination, URL url) {
+        private RemoteFile(File destination, URL url, String checksum, long expectedSize,
+                           DownloadPriority priority) {
             this.destination = destination;
             this.url = url;
+            this.checksum = checksum;
+            this.expectedSize = expectedSize;
+            this.priority = priority;
         }
 
-        @Override
-        public RemoteFile call() throws IOException, InterruptedException {
+        /**
+         * Get the rank of this file among those of its priority when it waits
+         * to start, which puts the largest files first so that none is left
+         * to run alone at the end. A file of unknown size is put before all
+         * others, as it is usually a library or game jar rather than a small
+         * asset, and so is a file that has already made an attempt, so that
+         * files that were started are finished first.
+         *
+         * @return the rank, where higher goes first
+         */
+        private synchronized long getRank() {
+            if (attempted) {
+                return Long.MAX_VALUE;
+            }
+
+            if (!largestFirst) {
+                return 0;
+            }
+            return expectedSize >= 0 ? expectedSize : Long.MAX_VALUE;
+        }
+
+        /**
+         * Let another download start in place of the current attempt.
+         */
+        private void release() {
+            DownloadPriority priority;
+            synchronized (this) {
+                priority = running;
+            }
+
+            // Not under the lock, as other downloads may be started on this thread
+            concurrency.release(priority.ordinal());
+        }
+
+        /**
+         * Set the request of the current attempt.
+         *
+         * @param request the request
+         */
+        private void setRequest(HttpRequest request) {
+            if (httpRequest != null) {
+                transferredBefore += httpRequest.getTransferredBytes();
+            }
+            httpRequest = request;
+        }
+
+        /**
+         * Create a new request to download this file.
+         *
+         * @param trial the number of attempts already made
+         * @return the request
+         */
+        private HttpRequest createRequest(int trial) {
+            HttpRequest request = HttpRequest.get(getCurrentUrl())
+                    .caller("HttpDownloader")
+                    .bandwidth(bandwidthJob)
+                    .retries(trial)
+                    .checksum(checksum);
+
+            if (minThroughput > 0) {
+                request.stallDetection(minThroughput, stallWindow);
+            }
+
+            return request;
+        }
+
+        /**
+         * Get the URL that this file is currently being downloaded from, which
+         * is one of the mirrors of {@link #getUrl()}.
+         *
+         * @return the URL
+         */
+        private synchronized URL getCurrentUrl() {
+            if (mirrors == null) {
+                MirrorList list = MirrorList.getDefault();
+                mirrors = list != null ? list.getCandidates(url, expectedSize) : Collections.singletonList(url);
+                mirror = 0;
+            }
+            return mirrors.get(mirror);
+        }
+
+        /**
+         * Move on to the next mirror after an attempt failed. Once every
+         * mirror has been tried, the mirrors are ranked again for the next
+         * round, which is subject to the retry policy.
+         *
+         * @param t the error
+         * @return true if there is another mirror to try right away
+         */
+        private synchronized boolean failOver(Throwable t) {
+            URL failed = getCurrentUrl();
+            if (!(t instanceof IOException) || mirror + 1 >= mirrors.size()) {
+                mirrors = null;
+                return false;
+            }
+
+            mirror++;
+            logger.log(Level.INFO, "Trying {0} because {1} failed: {2}",
+                    new Object[] { mirrors.get(mirror), failed, t.getMessage() });
+            return true;
+        }
+
+        /**
+         * Get the progress of the current download of this file.
+         *
+         * @return the progress between 0 and 1, or -1 if it is not known
+         */
+        private double getProgress() {
+            long total = getTotalBytes();
+            return total > 0 ? getReceivedBytes() / (double) total : -1;
+        }
+
+        /**
+         * Get the size of this file, as known from the response, or else as
+         * given when it was submitted.
+         *
+         * @return the number of bytes, or -1 if it is not known
+         */
+        private long getTotalBytes() {
+            if (finished) {
+                return finishedSize;
+            }
+
+            HttpRequest request = httpRequest;
+            long total = -1;
+
+            if (segmented != null) {
+                total = segmented.getTotalBytes();
+            } else if (request != null) {
+                total = request.getTotalLength();
+            }
+
+            return total >= 0 ? total : expectedSize;
+        }
+
+        /**
+         * Get the number of bytes of this file that are done.
+         *
+         * @return the number of bytes
+         */
+        private long getReceivedBytes() {
+            if (finished) {
+                return Math.max(0, finishedSize);
+            }
+
+            HttpRequest request = httpRequest;
+
+            if (segmented != null) {
+                return segmented.getReceivedBytes();
+            } else {
+                return request != null ? request.getReceivedBytes() : 0;
+            }
+        }
+
+        /**
+         * Get the number of bytes received for this file over every attempt.
+         *
+         * @return the number of bytes
+         */
+        private long getTransferredBytes() {
+            HttpRequest request = httpRequest;
+            long transferred = transferredBefore;
+
+            if (request != null) {
+                transferred += request.getTransferredBytes();
+            }
+            if (segmented != null) {
+                transferred += segmented.getTransferredBytes();
+            }
+
+            return transferred;
+        }
+
+        /**
+         * Start downloading this file.
+         *
+         * @param async true to download with an {@link AsyncHttpTransport},
+         *              or false to download on the threads of the executor
+         * @return a future that completes once the file is downloaded
+         */
+        private ListenableFuture<RemoteFile> start(boolean async) {
+            final SettableFuture<RemoteFile> future = SettableFuture.create();
             File file = getDestination();
 
             if (!overwrite && file.exists()) {
                 logger.log(Level.INFO, "Skipping {0} because it is already downloaded", this);
-            } else {
-                logger.log(Level.INFO, "Downloading {0}...", this);
-
-                try {
-                    File parentFile = file.getParentFile();
-                    parentFile.mkdirs();
-                    File tempFile = new File(parentFile, file.getName() + ".tmpdownload");
-                    int trial = 0;
-
-                    while (true) {
-                        tempFile.delete();
-
-                        checkInterrupted();
-
-                        try {
-                            httpRequest =
-                                    HttpRequest
-                                    .get(getUrl());
-
-                            synchronized (active) {
-                                active.add(this);
-                            }
-
-                            httpRequest
-                                    .execute()
-                                    .expectResponseCode(200)
-                                    .saveContent(tempFile);
-
-                            break;
-                        } catch (IOException e) {
-                            if (trial >= tryCount) {
-                                logger.log(Level.WARNING, "Failed to download " + getUrl(), e);
-                                throw e;
-                            } else {
-                                logger.log(Level.WARNING, "Waiting to retry downloading " + getUrl(), e);
-                                Thread.sleep(retryDelay);
-                            }
+                finish();
+                future.set(this);
+                return future;
+            }
+
+            logger.log(Level.INFO, "Downloading {0}...", this);
+            file.getParentFile().mkdirs();
+            this.async = async;
+            retryPolicy.recordAttempt();
+
+            if (!async) {
+                File tempFile = getTempFile();
+
+                // A partial file is resumed the same way it was started, and a file
+                // of unknown size is only split up once its response shows its size
+                if (maxSegments > 1 && !HttpRequest.canResume(tempFile) &&
+                        (SegmentedDownload.canResume(tempFile) || expectedSize > segmentSize)) {
+                    segmented = createSegmentedDownload(tempFile);
+                }
+
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (future.isCancelled()) {
+                            interrupt();
                         }
                     }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+
+            attempt(future, 0);
+            return future;
+        }
+
+        /**
+         * Create a download of this file in segments.
+         *
+         * @param tempFile the file to download to
+         * @return the download
+         */
+        private SegmentedDownload createSegmentedDownload(File tempFile) {
+            return new SegmentedDownload(tempFile, segmentExecutor, segmentSize, maxSegments, checksum) {
+                @Override
+                protected HttpRequest createRequest() {
+                    return RemoteFile.this.createRequest(trial);
+                }
+            };
+        }
+
+        /**
+         * Check whether the head of the response to a single request shows
+         * that the file is better downloaded in segments.
+         *
+         * @param request the executed request
+         * @return true to download the file in segments instead
+         * @throws IOException on I/O error
+         */
+        private boolean isSegmentable(HttpRequest request) throws IOException {
+            if (maxSegments <= 1 || request.getResponseCode() != 200 ||
+                    !"bytes".equalsIgnoreCase(request.getResponseHeader("Accept-Ranges")) ||
+                    HttpRequest.getValidator(request.getResponseHeader("ETag"),
+                            request.getResponseHeader("Last-Modified")) == null) {
+                return false;
+            }
+
+            try {
+                String length = request.getResponseHeader("Content-Length");
+                return length != null && Long.parseLong(length.trim()) > segmentSize;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Get the file that this file is downloaded to until it is complete.
+         *
+         * @return the file
+         */
+        private File getTempFile() {
+            File file = getDestination();
+            return new File(file.getParentFile(), file.getName() + ".tmpdownload");
+        }
+
+        /**
+         * Make one attempt at downloading this file once the concurrency
+         * controller lets it start, scheduling another attempt on failure until
+         * the retry limit is reached.
+         *
+         * <p>No thread is held while the attempt waits, so that the slots that
+         * free up can never all go to attempts that have no thread left to
+         * run on.</p>
+         *
+         * @param future the future to complete
+         * @param trial the number of attempts already made
+         */
+        private void attempt(final SettableFuture<RemoteFile> future, final int trial) {
+            final DownloadPriority priority = this.priority;
+            concurrency.acquireLater(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (RemoteFile.this) {
+                        running = priority;
+                        attempted = true;
+                    }
+                    if (async) {
+                        transfer(future, trial);
+                    } else {
+                        execute(future, trial);
+                    }
+                }
+            }, priority.ordinal(), getRank());
+        }
+
+        /**
+         * Make one attempt at downloading this file on a thread of the
+         * executor, once the concurrency controller has let it start.
+         *
+         * @param future the future to complete
+         * @param trial the number of attempts already made
+         */
+        private void execute(final SettableFuture<RemoteFile> future, final int trial) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        download(future, trial);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // The downloader was cancelled
+                release();
+                finish();
+                future.setException(e);
+            }
+        }
+
+        /**
+         * Make one attempt at downloading this file on the calling thread.
+         *
+         * @param future the future to complete
+         * @param trial the number of attempts already made
+         */
+        private void download(SettableFuture<RemoteFile> future, int trial) {
+            File file = getDestination();
+            File tempFile = getTempFile();
+            IOException error;
+
+            synchronized (this) {
+                if (future.isCancelled()) {
+                    release();
+                    return;
+                }
+                thread = Thread.currentThread();
+                this.trial = trial;
+            }
+
+            try {
+                error = transfer(tempFile);
+            } catch (InterruptedException e) {
+                finish();
+                future.setException(e);
+                return;
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                }
+            }
+
+            if (error != null) {
+                retry(future, trial, error);
+                return;
+            }
+
+            file.delete();
+            finish();
+            if (tempFile.renameTo(file)) {
+                future.set(this);
+            } else {
+                future.setException(new IOException(String.format("Failed to rename %s to %s", tempFile, file)));
+            }
+        }
+
+        /**
+         * Interrupt the attempt that is running on a thread of the executor,
+         * if there is one.
+         */
+        private synchronized void interrupt() {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        /**
+         * Try again after a failed attempt, on the next mirror right away, or
+         * else after a delay if the retry policy allows, or else fail.
+         *
+         * @param future the future to complete
+         * @param trial the number of attempts already made
+         * @param t the error
+         */
+        private void retry(final SettableFuture<RemoteFile> future, final int trial, Throwable t) {
+            URL failed = getCurrentUrl();
+            if (future.isCancelled() || isAborted()) {
+                // Stopped because another file failed, which has been logged already
+                logger.log(Level.FINE, "Stopped downloading " + getUrl() + " because the downloads were cancelled", t);
+                finish();
+                future.setException(t);
+            } else if (failOver(t)) {
+                attempt(future, trial);
+            } else if (!retryPolicy.shouldRetry(trial + 1, t)) {
+                logFailure(t, false);
+                finish();
+                // Say which mirror failed, since an error such as a refused connection does not
+                future.setException(t instanceof IOException ? new DownloadFailedException(failed, t) : t);
+            } else {
+                retryDelay = retryPolicy.getDelay(retryDelay);
+                logFailure(t, true);
+                retryTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        attempt(future, trial + 1);
+                    }
+                }, retryDelay);
+            }
+        }
+
+        /**
+         * Make one attempt at downloading this file with an
+         * {@link AsyncHttpTransport}, once the concurrency controller has let
+         * it start.
+         *
+         * @param future the future to complete
+         * @param trial the number of attempts already made
+         */
+        private void transfer(final SettableFuture<RemoteFile> future, final int trial) {
+            if (future.isCancelled()) {
+                release();
+                return;
+            }
+
+            final File file = getDestination();
+            final File tempFile = getTempFile();
+            final long transferred = getTransferredBytes();
+
+            setRequest(createRequest(trial).resumable(tempFile));
+            activate();
 
+            final ListenableFuture<HttpRequest> request = httpRequest.saveContentAsync(tempFile, 200);
+
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isCancelled()) {
+                        request.cancel(true);
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+
+            Futures.addCallback(request, new FutureCallback<HttpRequest>() {
+                @Override
+                public void onSuccess(HttpRequest result) {
                     file.delete();
-                    if (!tempFile.renameTo(file)) {
-                        throw new IOException(
-                                String.format("Failed to rename %s to %s", tempFile, file));
+                    if (tempFile.renameTo(file)) {
+                        endTransfer(transferred, null);
+                        finish();
+                        future.set(RemoteFile.this);
+                    } else {
+                        onFailure(new IOException(
+                                String.format("Failed to rename %s to %s", tempFile, file)));
                     }
-                } finally {
-                    synchronized (active) {
-                        active.remove(this);
-                        numProcessed++;
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    endTransfer(transferred, t);
+                    retry(future, trial, t);
+                }
+            });
+        }
+
+        /**
+         * Log the failure of an attempt to download this file.
+         *
+         * @param t the error
+         * @param retrying true if another attempt will be made
+         */
+        private void logFailure(Throwable t, boolean retrying) {
+            if (t instanceof HostUnavailableException) {
+                logger.log(Level.INFO, "Not downloading {0}: {1}", new Object[] { getUrl(), t.getMessage() });
+            } else if (t instanceof TransferStalledException) {
+                logger.log(Level.INFO, "Aborted slow download of {0}: {1}",
+                        new Object[] { getUrl(), t.getMessage() });
+            }
+
+            if (retrying) {
+                logger.log(Level.WARNING, "Waiting " + retryDelay + " ms to retry downloading " + getUrl(), t);
+            } else if (!(t instanceof HostUnavailableException)) {
+                logger.log(Level.WARNING, "Failed to download " + getUrl(), t);
+            }
+        }
+
+        private void finish() {
+            File file = getDestination();
+            finishedSize = file.exists() ? file.length() : getTotalBytes();
+            finished = true;
+
+            synchronized (active) {
+                active.remove(this);
+                numProcessed++;
+            }
+        }
+
+        /**
+         * Make one attempt at downloading this file, once the concurrency
+         * controller has let it start.
+         *
+         * @param tempFile the file to download to
+         * @return the error if the attempt failed, or null if it succeeded
+         * @throws InterruptedException on interruption
+         */
+        private IOException transfer(File tempFile) throws InterruptedException {
+            long transferred = getTransferredBytes();
+            IOException error = null;
+
+            try {
+                setRequest(createRequest(trial).resumable(tempFile));
+                activate();
+
+                if (segmented != null) {
+                    segmented.download();
+                } else {
+                    save(httpRequest, tempFile);
+                }
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                endTransfer(transferred, error);
+            }
+
+            return error;
+        }
+
+        /**
+         * Save this file with a single request, which is raced by a hedge if
+         * it takes too long. If the response shows that the file is larger
+         * than a segment and the server supports ranges, the request is
+         * dropped and the file is downloaded in segments instead.
+         *
+         * @param request the request
+         * @param tempFile the file to download to
+         * @throws IOException on I/O error
+         * @throws InterruptedException on interruption
+         */
+        private void save(HttpRequest request, File tempFile) throws IOException, InterruptedException {
+            Hedge hedge = new Hedge(this, request, tempFile);
+            hedgePolicy.recordStart();
+            retryTimer.schedule(hedge, HEDGE_CHECK_INTERVAL, HEDGE_CHECK_INTERVAL);
+
+            try {
+                request.execute().expectResponseCode(200);
+
+                if (isSegmentable(request)) {
+                    request.abort();
+                    HttpRequest.discardPartial(tempFile);
+                    segmented = createSegmentedDownload(tempFile);
+                } else {
+                    request.saveContent(tempFile);
+                }
+            } catch (IOException e) {
+                if (!hedge.awaitWin()) {
+                    throw e;
+                }
+
+                HttpRequest.discardPartial(tempFile);
+                if (!hedge.getFile().renameTo(tempFile)) {
+                    throw new IOException(String.format("Failed to rename %s to %s", hedge.getFile(), tempFile));
+                }
+            } finally {
+                hedge.stop();
+                transferredBefore += hedge.getTransferredBytes();
+            }
+
+            if (segmented != null) {
+                segmented.download();
+                return;
+            }
+
+            hedgePolicy.recordDuration(tempFile.length(), hedge.getElapsed());
+        }
+
+        /**
+         * Tell the concurrency controller how an attempt went, and let
+         * another start.
+         *
+         * @param transferred the bytes received for this file before the attempt
+         * @param error the error if the attempt failed, or null
+         */
+        private void endTransfer(long transferred, Throwable error) {
+            // A file that a mirror does not have says nothing about the link, and the
+            // error is that of whichever request failed, including that of a segment
+            boolean refused = error instanceof UnexpectedResponseException &&
+                    ((UnexpectedResponseException) error).isPermanent();
+            concurrency.record(getTransferredBytes() - transferred, getLatency(), error != null && !refused);
+            release();
+        }
+
+        /**
+         * Get the time to the first byte of the response to the current
+         * attempt, or the average over its requests if it was made in
+         * segments.
+         *
+         * @return the time in nanoseconds, or -1 if it is not known
+         */
+        private long getLatency() {
+            SegmentedDownload segmented = this.segmented;
+            if (segmented != null) {
+                return segmented.getLatency();
+            }
+
+            HttpRequest request = httpRequest;
+            if (request == null) {
+                return -1;
+            }
+
+            long latency = request.getMetrics().getNanos(RequestMetrics.Phase.FIRST_BYTE);
+            return latency > 0 ? latency : -1;
+        }
+
+        private void activate() {
+            synchronized (active) {
+                if (!active.contains(this)) {
+                    active.add(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Watches a request for a file, and races it with a second request on
+     * another connection once it has run for too long. Whichever finishes
+     * first is kept, and the other is aborted.
+     */
+    private class Hedge extends TimerTask {
+        private final RemoteFile remoteFile;
+        private final HttpRequest request;
+        private final File file;
+        private final long startedAt = System.nanoTime();
+        private HttpRequest hedgeRequest;
+        private boolean running;
+        private boolean stopped;
+        private boolean won;
+
+        private Hedge(RemoteFile remoteFile, HttpRequest request, File tempFile) {
+            this.remoteFile = remoteFile;
+            this.request = request;
+            this.file = new File(tempFile.getParentFile(), remoteFile.getDestination().getName() + ".tmphedge");
+        }
+
+        /**
+         * Get the file that the hedge is saved to.
+         *
+         * @return the file
+         */
+        private File getFile() {
+            return file;
+        }
+
+        /**
+         * Get the time since the first request was started.
+         *
+         * @return the time in milliseconds
+         */
+        private long getElapsed() {
+            return (System.nanoTime() - startedAt) / 1000000;
+        }
+
+        /**
+         * Get the number of bytes received by the hedge.
+         *
+         * @return the number of bytes
+         */
+        private synchronized long getTransferredBytes() {
+            return hedgeRequest != null ? hedgeRequest.getTransferredBytes() : 0;
+        }
+
+        /**
+         * Check whether the first request has run for long enough to be
+         * hedged, and start the hedge if so.
+         */
+        @Override
+        public void run() {
+            long total = request.getTotalLength();
+            long delay = hedgePolicy.getDelay(total >= 0 ? total : remoteFile.getExpectedSize());
+
+            if (delay < 0 || getElapsed() < delay || concurrency.getInFlight() >= concurrency.getLimit()) {
+                return;
+            }
+
+            synchronized (this) {
+                if (stopped || !hedgePolicy.tryHedge()) {
+                    return;
+                }
+                running = true;
+            }
+
+            cancel();
+            logger.log(Level.INFO, "Hedging {0} after {1} ms", new Object[] { remoteFile.getUrl(), getElapsed() });
+            segmentExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runHedge();
+                }
+            });
+        }
+
+        /**
+         * Download the file with the hedge, and abort the first request if
+         * the hedge finishes first.
+         */
+        private void runHedge() {
+            try {
+                HttpRequest hedgeRequest = remoteFile.createRequest(remoteFile.trial).hedge();
+
+                synchronized (this) {
+                    if (stopped) {
+                        return;
+                    }
+                    this.hedgeRequest = hedgeRequest;
+                }
+
+                hedgeRequest.execute().expectResponseCode(200).saveContent(file);
+
+                synchronized (this) {
+                    if (stopped) {
+                        file.delete();
+                        return;
                     }
+                    won = true;
                 }
+
+                hedgePolicy.recordWin(getSavedMillis());
+                request.abort();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Hedge of " + remoteFile.getUrl() + " failed", e);
+                file.delete();
+            } catch (InterruptedException e) {
+                file.delete();
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Estimate how much longer the first request would have taken to
+         * finish, from how far it got.
+         *
+         * @return the time in milliseconds, or -1 if it is not known
+         */
+        private long getSavedMillis() {
+            long total = request.getTotalLength();
+            long received = request.getReceivedBytes();
+
+            if (total <= 0 || received <= 0) {
+                return -1;
+            }
+
+            long elapsed = getElapsed();
+            return elapsed * total / received - elapsed;
+        }
+
+        /**
+         * Wait for a running hedge to finish, after the first request failed.
+         *
+         * @return true if the hedge finished first, and its file is complete
+         * @throws InterruptedException on interruption
+         */
+        private synchronized boolean awaitWin() throws InterruptedException {
+            while (running && !won) {
+                wait();
+            }
+            return won;
+        }
+
+        /**
+         * Stop watching the first request, abort the hedge if it is still
+         * running, and delete its file if it was not used.
+         */
+        private void stop() {
+            cancel();
+
+            HttpRequest hedgeRequest;
+            synchronized (this) {
+                stopped = true;
+                hedgeRequest = this.hedgeRequest;
             }
 
-            return this;
+            if (hedgeRequest != null) {
+                hedgeRequest.abort();
+            }
+            file.delete();
         }
     }
 
     @Override
     public void updateProgress() {
-        double itemProgressTotal = 1 / (double) executed.size();
-        double progress = numProcessed / (double) executed.size();
+        List<RemoteFile> files;
+        synchronized (submitted) {
+            files = new ArrayList<RemoteFile>(this.files);
+        }
+
+        if (files.isEmpty()) {
+            return;
+        }
+
+        long knownTotal = 0;
+        long knownDone = 0;
+        long transferred = 0;
+        int known = 0;
+        int unknownDone = 0;
+
+        for (RemoteFile file : files) {
+            long total = file.getTotalBytes();
+            transferred += file.getTransferredBytes();
+
+            if (total >= 0) {
+                known++;
+                knownTotal += total;
+                knownDone += Math.min(total, file.getReceivedBytes());
+            } else if (file.finished) {
+                unknownDone++;
+            }
+        }
+
+        // Files of unknown size are assumed to be of the average known size
+        long average = known > 0 ? knownTotal / known : 0;
+        long totalBytes = knownTotal + (files.size() - known) * average;
+        long doneBytes = knownDone + unknownDone * average;
+        double progress = totalBytes > 0 ?
+                doneBytes / (double) totalBytes : numProcessed / (double) files.size();
 
         synchronized (active) {
+            updateThroughput(transferred);
+            remainingBytes = totalBytes - doneBytes;
+
             StringBuilder builder = new StringBuilder();
             boolean first = true;
             for (RemoteFile file : active) {
@@ -242,12 +1353,9 @@ public class HttpDownloader
                     builder.append(", ");
                 }
 
-                HttpRequest httpRequest = file.getHttpRequest();
-                double itemProgress = httpRequest.getProgress();
+                double itemProgress = file.getProgress();
 
                 if (itemProgress >= 0) {
-                    progress += itemProgress * itemProgressTotal;
-
                     builder.append(_("downloader.fileListPct",
                             FilenameUtils.getName(file.getUrl().getPath()),
                             itemProgress));
@@ -257,7 +1365,49 @@ public class HttpDownloader
 
             }
 
-            push(progress, _("downloader.downloadingMany", builder.toString()));
+            String status;
+            if (throughput > 0 && remainingBytes > 0) {
+                status = _("downloader.transferStatus", doneBytes / 1048576.0, totalBytes / 1048576.0,
+                        throughput / 1024, formatDuration((long) (remainingBytes / throughput)),
+                        concurrency.getLimit());
+            } else {
+                status = _("downloader.transferStatusNoRate", doneBytes / 1048576.0, totalBytes / 1048576.0,
+                        concurrency.getLimit());
+            }
+
+            push(progress, _("downloader.downloadingManyStatus", builder.toString(), status));
+        }
+    }
+
+    /**
+     * Update the smoothed throughput with the bytes received since the last
+     * update, weighting older rates down exponentially with time.
+     *
+     * @param transferred the number of bytes received for all files so far
+     */
+    private void updateThroughput(long transferred) {
+        long now = System.nanoTime();
+
+        if (lastSampleAt != 0) {
+            double elapsed = (now - lastSampleAt) / 1e9;
+            if (elapsed <= 0) {
+                return;
+            }
+
+            double rate = Math.max(0, transferred - lastTransferred) / elapsed;
+            double alpha = 1 - Math.exp(-elapsed / THROUGHPUT_SMOOTHING);
+            throughput = throughput < 0 ? rate : throughput + alpha * (rate - throughput);
+        }
+
+        lastSampleAt = now;
+        lastTransferred = transferred;
+    }
+
+    private static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        } else {
+            return String.format("%d:%02d", seconds / 60, seconds % 60);
         }
     }
 
@@ -0,0 +1,307 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the {@link RequestMetrics} of finished requests into histograms per
+ * host and per caller.
+ *
+ * <p>The shared instance from {@link #getInstance()} sees every request made since
+ * the launcher started. Other instances can be added with
+ * {@link HttpRequest#addListener(HttpRequest.Listener)} to look at a shorter span,
+ * such as a single install.</p>
+ */
+public class HttpMetrics implements HttpRequest.Listener {
+
+    private static final HttpMetrics instance = new HttpMetrics();
+    private static final String UNKNOWN_CALLER = "other";
+
+    private final Map<String, Summary> hosts = new TreeMap<String, Summary>();
+    private final Map<String, Summary> callers = new TreeMap<String, Summary>();
+
+    @Override
+    public synchronized void requestFinished(RequestMetrics metrics) {
+        String caller = metrics.getCaller() != null ? metrics.getCaller() : UNKNOWN_CALLER;
+        getSummary(hosts, metrics.getHost()).add(metrics);
+        getSummary(callers, caller).add(metrics);
+    }
+
+    private static Summary getSummary(Map<String, Summary> map, String key) {
+        Summary summary = map.get(key);
+        if (summary == null) {
+            summary = new Summary();
+            map.put(key, summary);
+        }
+        return summary;
+    }
+
+    /**
+     * Get a copy of the summaries for each host.
+     *
+     * @return a map of host names to summaries
+     */
+    public synchronized Map<String, Summary> getHosts() {
+        return copy(hosts);
+    }
+
+    /**
+     * Get a copy of the summaries for each caller.
+     *
+     * @return a map of caller names to summaries
+     */
+    public synchronized Map<String, Summary> getCallers() {
+        return copy(callers);
+    }
+
+    private static Map<String, Summary> copy(Map<String, Summary> map) {
+        Map<String, Summary> result = new TreeMap<String, Summary>();
+        for (Map.Entry<String, Summary> entry : map.entrySet()) {
+            result.put(entry.getKey(), new Summary(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Forget everything collected so far.
+     */
+    public synchronized void clear() {
+        hosts.clear();
+        callers.clear();
+    }
+
+    /**
+     * Check whether any requests have been collected.
+     *
+     * @return true if none have
+     */
+    public synchronized boolean isEmpty() {
+        return hosts.isEmpty();
+    }
+
+    /**
+     * Get a multi-line report of the collected metrics.
+     *
+     * @return the report
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP requests by caller:");
+        append(builder, callers);
+        builder.append("\nHTTP requests by host:");
+        append(builder, hosts);
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, Map<String, Summary> map) {
+        for (Map.Entry<String, Summary> entry : map.entrySet()) {
+            builder.append("\n  ").append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+    }
+
+    /**
+     * Get the shared instance, which collects every request.
+     *
+     * @return the instance
+     */
+    public static HttpMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Totals and timing histograms for a group of requests.
+     */
+    public static class Summary {
+        @Getter
+        private int count;
+        @Getter
+        private int failures;
+        @Getter
+        private int retries;
+        @Getter
+        private int cacheHits;
+        @Getter
+        private int reusedConnections;
+        @Getter
+        private int hedges;
+        @Getter
+        private long transferredBytes;
+        @Getter
+        private long resumedBytes;
+        @Getter
+        private final Histogram total;
+        private final Histogram[] phases;
+
+        private Summary() {
+            total = new Histogram();
+            phases = new Histogram[RequestMetrics.Phase.values().length];
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+
+        private Summary(Summary other) {
+            count = other.count;
+            failures = other.failures;
+            retries = other.retries;
+            cacheHits = other.cacheHits;
+            reusedConnections = other.reusedConnections;
+            hedges = other.hedges;
+            transferredBytes = other.transferredBytes;
+            resumedBytes = other.resumedBytes;
+            total = new Histogram(other.total);
+            phases = new Histogram[other.phases.length];
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram(other.phases[i]);
+            }
+        }
+
+        private void add(RequestMetrics metrics) {
+            count++;
+            if (metrics.isFailed()) {
+                failures++;
+            }
+            if (metrics.getRetries() > 0) {
+                retries++;
+            }
+            if (metrics.isFromCache()) {
+                cacheHits++;
+            }
+            if (metrics.isReused()) {
+                reusedConnections++;
+            }
+            if (metrics.isHedged()) {
+                hedges++;
+            }
+            transferredBytes += metrics.getTransferredBytes();
+            resumedBytes += metrics.getResumedBytes();
+            total.add(metrics.getTotalMillis());
+            for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+                phases[phase.ordinal()].add(metrics.getMillis(phase));
+            }
+        }
+
+        /**
+         * Get the histogram of the time spent in a phase.
+         *
+         * @param phase the phase
+         * @return the histogram
+         */
+        public Histogram getPhase(RequestMetrics.Phase phase) {
+            return phases[phase.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(count).append(" requests, ")
+                    .append(failures).append(" failed, ")
+                    .append(retries).append(" retries, ")
+                    .append(cacheHits).append(" cached, ")
+                    .append(reusedConnections).append(" reused connections, ")
+                    .append(hedges).append(" hedges, ")
+                    .append(transferredBytes / 1024).append(" KB, ")
+                    .append(resumedBytes / 1024).append(" KB saved by resuming; total ").append(total);
+            for (RequestMetrics.Phase phase : RequestMetrics.Phase.values()) {
+                Histogram histogram = phases[phase.ordinal()];
+                if (histogram.getMax() > 0) {
+                    builder.append("; ").append(phase.name().toLowerCase()).append(" ").append(histogram);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A histogram of times in milliseconds, with buckets that double in size.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 24;
+
+        private final long[] buckets;
+        @Getter
+        private long count;
+        @Getter
+        private long sum;
+        @Getter
+        private long max;
+
+        private Histogram() {
+            buckets = new long[BUCKETS];
+        }
+
+        private Histogram(Histogram other) {
+            buckets = other.buckets.clone();
+            count = other.count;
+            sum = other.sum;
+            max = other.max;
+        }
+
+        private void add(long millis) {
+            // Bucket 0 holds 0 ms, and bucket n holds [2^(n-1), 2^n) ms
+            int bucket = millis <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(millis);
+            buckets[Math.min(bucket, BUCKETS - 1)]++;
+            count++;
+            sum += millis;
+            max = Math.max(max, millis);
+        }
+
+        /**
+         * Get the mean.
+         *
+         * @return the mean in milliseconds
+         */
+        public long getMean() {
+            return count > 0 ? sum / count : 0;
+        }
+
+        /**
+         * Get an upper bound for the given percentile, which is accurate to
+         * within a factor of two.
+         *
+         * @param percentile the percentile, between 0 and 100
+         * @return the time in milliseconds
+         */
+        public long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean=%d p50<=%d p90<=%d p99<=%d max=%d ms",
+                    getMean(), getPercentile(50), getPercentile(90), getPercentile(99), max);
+        }
+    }
+
+}
@@ -18,44 +18,85 @@
 
 package com.sk89q.skmcl.util;
 
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.sk89q.skmcl.concurrent.ProgressUpdater;
 import com.sk89q.skmcl.concurrent.SwingProgressObserver;
 import com.sk89q.skmcl.concurrent.WorkUnit;
+import lombok.NonNull;
 import lombok.extern.java.Log;
-import org.codehaus.jackson.map.ObjectMapper;
+import org.apache.commons.io.FileUtils;
 
-import javax.net.ssl.HttpsURLConnection;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static com.sk89q.skmcl.util.LauncherUtils.checkInterrupted;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 
 /**
- * A simple fluent interface for performing HTTP requests that uses
- * {@link java.net.HttpURLConnection} or {@link HttpsURLConnection}.
+ * A simple fluent interface for performing HTTP requests, which are carried out
+ * by an {@link HttpTransport}.
+ *
+ * <p>Requests to a host whose {@link CircuitBreaker} is open fail right away
+ * with a {@link HostUnavailableException}.</p>
  */
 @Log
 public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater {
 
+    private static final int CONNECT_TIMEOUT = 1000 * 30;
     private static final int READ_TIMEOUT = 1000 * 60 * 10;
     private static final int READ_BUFFER_SIZE = 1024 * 8;
+    private static final int MAX_PREALLOCATE_SIZE = 1024 * 1024 * 32;
+    private static final String VALIDATOR_SUFFIX = ".validator";
+
+    private static HttpTransport defaultTransport = createDefaultTransport();
+    private static final List<Listener> listeners =
+            new CopyOnWriteArrayList<Listener>(Collections.singletonList(HttpMetrics.getInstance()));
 
-    private final ObjectMapper mapper = new ObjectMapper();
     private final Map<String, String> headers = new HashMap<String, String>();
     private final String method;
     private final URL url;
+    private final RequestMetrics metrics;
     private String contentType;
     private byte[] body;
-    private HttpURLConnection conn;
+    private HttpTransport transport = defaultTransport;
+    private HttpTransport.Response response;
     private InputStream inputStream;
+    private CountingInputStream rawStream;
+    private String contentEncoding;
+    private volatile boolean closed;
 
     private long contentLength = -1;
     private long readBytes = 0;
+    private boolean compression = true;
+    private int connectTimeout = CONNECT_TIMEOUT;
+    private int readTimeout = READ_TIMEOUT;
+    private StallDetector stallDetector;
+    private BandwidthLimiter.Job bandwidthJob = BandwidthLimiter.getCurrentJob();
+    private HttpCache cache;
+    private HttpCache.Entry cacheEntry;
+    private HttpCache.Writer cacheWriter;
+    private File resumeFile;
+    private long rangeOffset;
+    private String rangeValidator;
+    private String checksum;
+    private MessageDigest digest;
+    private long startedAt;
+    private long responseAt;
+    private boolean reported;
 
     /**
      * Create a new HTTP request.
@@ -66,6 +107,7 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
     private HttpRequest(String method, URL url) {
         this.method = method;
         this.url = url;
+        this.metrics = new RequestMetrics(method, url);
     }
 
     /**
@@ -77,7 +119,7 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
      */
     public HttpRequest bodyJson(Object object) throws IOException {
         contentType = "application/json";
-        body = mapper.writeValueAsBytes(object);
+        body = Codecs.getWriter().writeValueAsBytes(object);
         return this;
     }
 
@@ -105,6 +147,347 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
         return this;
     }
 
+    /**
+     * Set whether a compressed response may be requested from the server.
+     *
+     * <p>Compression is requested by default, and a compressed response is
+     * transparently decompressed when read.</p>
+     *
+     * @param compression true to accept a compressed response
+     * @return this object
+     */
+    public HttpRequest compression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Set the time to wait for a connection to be established.
+     *
+     * @param timeout the timeout in milliseconds, or 0 to wait forever
+     * @return this object
+     */
+    public HttpRequest connectTimeout(int timeout) {
+        this.connectTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Set the time to wait for data to arrive when reading the response.
+     *
+     * @param timeout the timeout in milliseconds, or 0 to wait forever
+     * @return this object
+     */
+    public HttpRequest readTimeout(int timeout) {
+        this.readTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Abort {@link #saveContent(OutputStream)} with a {@link TransferStalledException}
+     * if the throughput over a sliding window falls below a minimum.
+     *
+     * <p>The read timeout is lowered to the length of the window so that a
+     * connection that has gone completely quiet is also aborted.</p>
+     *
+     * @param minBytesPerSecond the minimum throughput
+     * @param windowMillis the length of the window in milliseconds
+     * @return this object
+     */
+    public HttpRequest stallDetection(long minBytesPerSecond, long windowMillis) {
+        this.stallDetector = new StallDetector(minBytesPerSecond, windowMillis);
+        return this;
+    }
+
+    /**
+     * Set the job of a {@link BandwidthLimiter} that the body of the response
+     * is read under when it is saved, instead of the job of the thread that
+     * created this request.
+     *
+     * <p>Responses received through an {@link AsyncHttpTransport} are not
+     * limited.</p>
+     *
+     * @param job the job
+     * @return this object
+     */
+    public HttpRequest bandwidth(@NonNull BandwidthLimiter.Job job) {
+        this.bandwidthJob = job;
+        return this;
+    }
+
+    /**
+     * Store the response in the given cache, and on later requests for the same
+     * URL, ask the server to only send the response if it has changed.
+     *
+     * <p>Only GET requests are cached.</p>
+     *
+     * @param cache the cache, or null to not use a cache
+     * @return this object
+     */
+    public HttpRequest cache(HttpCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    /**
+     * Use the default cache, if one has been set with
+     * {@link HttpCache#setDefault(HttpCache)}.
+     *
+     * @return this object
+     * @see #cache(HttpCache)
+     */
+    public HttpRequest cached() {
+        return cache(HttpCache.getDefault());
+    }
+
+    /**
+     * Resume a download into the given file if part of it was saved by an
+     * earlier request, and make it possible to resume this download later.
+     *
+     * <p>If the file exists and the validator of the response it came from
+     * was recorded, only the rest of the body is requested, with an
+     * {@code If-Range} header so that the server sends the whole body instead
+     * if it has changed since. {@link #saveContent(File)} and
+     * {@link #saveContentAsync(File, int...)} then append to the file if the
+     * server sent the rest, and overwrite it otherwise. A response code of 206
+     * is accepted wherever 200 is expected.</p>
+     *
+     * <p>The validator is the strong ETag or else the Last-Modified date of the
+     * response, and is kept in a file next to the given file until the body has
+     * been saved in full. Compression is turned off, because ranges count bytes
+     * of the encoded body.</p>
+     *
+     * @param file the file that the body will be saved to
+     * @return this object
+     */
+    public HttpRequest resumable(@NonNull File file) {
+        resumeFile = file;
+        compression = false;
+        rangeOffset = 0;
+        rangeValidator = null;
+
+        long length = file.length();
+        if (length > 0) {
+            try {
+                String validator = FileUtils.readFileToString(getValidatorFile(file), "UTF-8").trim();
+                if (!validator.isEmpty()) {
+                    rangeOffset = length;
+                    rangeValidator = validator;
+                }
+            } catch (IOException ignored) {
+                // Nothing to resume from
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Check the body saved by {@link #saveContent(File)} or
+     * {@link #saveContentAsync(File, int...)} against a checksum while it is
+     * written, so that the file does not have to be read again afterwards.
+     *
+     * <p>If the rest of a body is appended with {@link #resumable(File)}, the
+     * part already in the file is read into the digest first. If the checksum
+     * does not match, the file is deleted and a
+     * {@link ChecksumMismatchException} is thrown.</p>
+     *
+     * @param checksum an MD5 or SHA-1 checksum in hex, or null to not check
+     * @return this object
+     */
+    public HttpRequest checksum(String checksum) {
+        this.checksum = Checksums.normalize(checksum);
+        return this;
+    }
+
+    /**
+     * Set the name of the part of the launcher making this request, under
+     * which its metrics are grouped.
+     *
+     * @param caller the name of the caller
+     * @return this object
+     */
+    public HttpRequest caller(String caller) {
+        metrics.setCaller(caller);
+        return this;
+    }
+
+    /**
+     * Mark this request as a duplicate of another that is taking too long,
+     * sent to race it.
+     *
+     * @return this object
+     */
+    public HttpRequest hedge() {
+        metrics.setHedged(true);
+        return this;
+    }
+
+    /**
+     * Set the number of earlier attempts that were made at this request,
+     * which is recorded in its metrics.
+     *
+     * @param retries the number of earlier attempts
+     * @return this object
+     */
+    public HttpRequest retries(int retries) {
+        metrics.setRetries(retries);
+        return this;
+    }
+
+    /**
+     * Set the transport used to carry out this request.
+     *
+     * @param transport the transport
+     * @return this object
+     */
+    public HttpRequest transport(@NonNull HttpTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Get the request method.
+     *
+     * @return the method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Get the metrics of this request, which are complete once it has been
+     * closed.
+     *
+     * @return the metrics
+     */
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get the URL to request, with any illegal characters escaped.
+     *
+     * @return the URL
+     */
+    public URL getUrl() {
+        return reformat(url);
+    }
+
+    /**
+     * Get the headers to send, including those implied by the body and
+     * other settings of this request.
+     *
+     * @return an unmodifiable map of headers
+     */
+    public Map<String, String> getHeaders() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+
+        if (body != null) {
+            result.put("Content-Type", contentType);
+        }
+
+        if (compression && !hasHeader("Accept-Encoding")) {
+            result.put("Accept-Encoding", "gzip, deflate");
+        }
+
+        if (rangeOffset > 0) {
+            result.put("Range", "bytes=" + rangeOffset + "-");
+            result.put("If-Range", rangeValidator);
+        }
+
+        if (cacheEntry != null) {
+            if (cacheEntry.getEtag() != null) {
+                result.put("If-None-Match", cacheEntry.getEtag());
+            }
+            if (cacheEntry.getLastModified() != null) {
+                result.put("If-Modified-Since", cacheEntry.getLastModified());
+            }
+        }
+
+        result.putAll(headers);
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Get the body to send.
+     *
+     * @return the body, or null if there is none
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * Get the time to wait for a connection to be established.
+     *
+     * @return the timeout in milliseconds, or 0 to wait forever
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Get the time to wait for data to arrive when reading the response,
+     * taking stall detection into account.
+     *
+     * @return the timeout in milliseconds, or 0 to wait forever
+     */
+    public int getReadTimeout() {
+        if (stallDetector != null) {
+            return (int) Math.min(
+                    readTimeout > 0 ? readTimeout : Integer.MAX_VALUE, stallDetector.getWindowMillis());
+        } else {
+            return readTimeout;
+        }
+    }
+
+    /**
+     * Check whether a header has been set, ignoring case.
+     *
+     * @param key the header key
+     * @return true if set
+     */
+    private boolean hasHeader(String key) {
+        for (String existing : headers.keySet()) {
+            if (existing.equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wrap the response stream to undo the given content encoding.
+     *
+     * @param in the raw response stream
+     * @param encoding the content encoding, or null
+     * @return the decoded stream
+     * @throws IOException on I/O error
+     */
+    private static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+
+        encoding = encoding.trim().toLowerCase();
+
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            return new GZIPInputStream(in, READ_BUFFER_SIZE);
+        } else if (encoding.equals("deflate")) {
+            // Some servers send a raw deflate stream instead of a zlib stream
+            PushbackInputStream pushback = new PushbackInputStream(in, 1);
+            int first = pushback.read();
+            if (first != -1) {
+                pushback.unread(first);
+            }
+            boolean zlib = (first & 0x0f) == 8;
+            return new InflaterInputStream(pushback, new Inflater(!zlib), READ_BUFFER_SIZE);
+        } else {
+            return in;
+        }
+    }
+
     /**
      * Execute the request.
      *
@@ -117,49 +500,101 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
         boolean successful = false;
 
         try {
-            if (conn != null) {
+            if (response != null) {
                 throw new IllegalArgumentException("Connection already executed");
             }
 
-            conn = (HttpURLConnection) reformat(url).openConnection();
+            startedAt = System.nanoTime();
+
+            if (cache != null && method.equals("GET")) {
+                cacheEntry = cache.get(getUrl());
+            }
+
+            CircuitBreaker breaker = getCircuitBreaker();
+            if (breaker != null) {
+                breaker.checkRequest();
+            }
 
-            if (body != null) {
-                conn.setRequestProperty("Content-Type", contentType);
-                conn.setRequestProperty("Content-Length", Integer.toString(body.length));
-                conn.setDoInput(true);
+            try {
+                attach(transport.open(this));
+            } catch (IOException e) {
+                if (breaker != null && isConnectionFailure(e)) {
+                    breaker.recordFailure();
+                }
+                throw e;
             }
 
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                conn.setRequestProperty(entry.getKey(), entry.getValue());
+            if (breaker != null) {
+                breaker.recordResponse(response.getResponseCode());
             }
 
-            conn.setRequestMethod(method);
-            conn.setUseCaches(false);
-            conn.setDoOutput(true);
-            conn.setReadTimeout(READ_TIMEOUT);
+            boolean fromCache = false;
 
-            conn.connect();
+            if (cacheEntry != null && response.getResponseCode() == 304) {
+                log.log(Level.INFO, "{0} has not changed, so the cached copy will be used", url);
+                response.close(false);
+                attach(cache.open(cacheEntry));
+                fromCache = true;
+                metrics.setFromCache(true);
+            }
+
+            responseAt = System.nanoTime();
+            metrics.setResponseCode(response.getResponseCode());
 
-            if (body != null) {
-                DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-                out.write(body);
-                out.flush();
-                out.close();
+            if (rangeOffset > 0 && response.getResponseCode() == 416) {
+                discardPartial(); // Start over on the next attempt
             }
 
-            inputStream = conn.getResponseCode() == HttpURLConnection.HTTP_OK ?
-                    conn.getInputStream() : conn.getErrorStream();
+            InputStream stream = response.getBody();
+
+            if (stream != null) {
+                rawStream = new CountingInputStream(stream);
+                inputStream = rawStream;
+
+                // There is nothing to decode if there is no body
+                if (!method.equals("HEAD") && getContentLength() != 0) {
+                    contentEncoding = response.getHeaderField("Content-Encoding");
+                    inputStream = decode(rawStream, contentEncoding);
+                }
+
+                if (cache != null && !fromCache && method.equals("GET") && response.getResponseCode() == 200) {
+                    cacheWriter = cache.store(getUrl(), response);
+                    if (cacheWriter != null) {
+                        inputStream = cacheWriter.wrap(inputStream);
+                    }
+                }
+            }
 
             successful = true;
         } finally {
             if (!successful) {
-                close();
+                close(true);
             }
         }
 
         return this;
     }
 
+    /**
+     * Make the given response the response of this request, unless the
+     * request was aborted while the response was being opened, in which case
+     * the response is closed at once so that its connection is not leaked.
+     *
+     * @param opened the response
+     * @throws InterruptedIOException if the request was aborted
+     */
+    private void attach(HttpTransport.Response opened) throws InterruptedIOException {
+        synchronized (this) {
+            if (!closed) {
+                response = opened;
+                return;
+            }
+        }
+
+        opened.close(true);
+        throw new InterruptedIOException("The request to " + url + " was aborted");
+    }
+
     /**
      * Require that the response code is one of the given response codes.
      *
@@ -170,14 +605,31 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
     public HttpRequest expectResponseCode(int ... codes) throws IOException {
         int responseCode = getResponseCode();
 
+        if (isExpected(responseCode, codes)) {
+            return this;
+        }
+
+        metrics.setFailed(true);
+        close();
+        throw new UnexpectedResponseException(responseCode);
+    }
+
+    /**
+     * Check whether a response code is one of the given codes, counting a
+     * partial response to a range that was asked for as a full response.
+     *
+     * @param responseCode the response code
+     * @param codes a list of codes
+     * @return true if expected
+     */
+    private boolean isExpected(int responseCode, int[] codes) {
         for (int code : codes) {
-            if (code == responseCode) {
-                return this;
+            if (code == responseCode || (code == 200 && responseCode == 206 && rangeOffset > 0)) {
+                return true;
             }
         }
 
-        close();
-        throw new IOException("Did not get expected response code, got " + responseCode);
+        return false;
     }
 
     /**
@@ -187,11 +639,36 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
      * @throws IOException on I/O error
      */
     public int getResponseCode() throws IOException {
-        if (conn == null) {
+        if (response == null) {
+            throw new IllegalArgumentException("No connection has been made");
+        }
+
+        return response.getResponseCode();
+    }
+
+    /**
+     * Get the value of a response header.
+     *
+     * @param name the name of the header, which is not case sensitive
+     * @return the value, or null if the header was not sent
+     */
+    public String getResponseHeader(String name) {
+        if (response == null) {
             throw new IllegalArgumentException("No connection has been made");
         }
 
-        return conn.getResponseCode();
+        return response.getHeaderField(name);
+    }
+
+    /**
+     * Check whether a download into the given file can be resumed with
+     * {@link #resumable(File)}.
+     *
+     * @param file the file
+     * @return true if part of the file and the validator of its response exist
+     */
+    public static boolean canResume(File file) {
+        return file.length() > 0 && getValidatorFile(file).exists();
     }
 
     /**
@@ -215,99 +692,618 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
             throw new IllegalArgumentException("No input stream available");
         }
 
+        boolean successful = false;
+
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            int b = 0;
-            while ((b = inputStream.read()) != -1) {
-                checkInterrupted();
-                bos.write(b);
+            long length = getContentLength();
+            byte[] data;
+
+            if (contentEncoding != null) {
+                // The length is that of the compressed body
+                int initialSize = (int) Math.min(MAX_PREALLOCATE_SIZE, Math.max(length * 4, READ_BUFFER_SIZE));
+                data = readUnknown(initialSize).toByteArray();
+            } else if (length >= 0 && length <= MAX_PREALLOCATE_SIZE) {
+                data = readFully((int) length);
+            } else {
+                data = readUnknown(READ_BUFFER_SIZE).toByteArray();
             }
-            return new BufferedResponse(bos.toByteArray());
+
+            successful = true;
+            return new BufferedResponse(data);
         } finally {
-            close();
+            close(!successful);
         }
     }
 
     /**
-     * Save the result to a file.
+     * Read a response of a known length directly into an array of that size.
      *
-     * @param file the file
-     * @return this object
+     * @param length the expected length
+     * @return the data
      * @throws IOException on I/O error
      * @throws InterruptedException on interruption
      */
-    public HttpRequest saveContent(File file) throws IOException, InterruptedException {
-        FileOutputStream fos = null;
-        BufferedOutputStream bos = null;
-
-        try {
-            fos = new FileOutputStream(file);
-            bos = new BufferedOutputStream(fos);
+    private byte[] readFully(int length) throws IOException, InterruptedException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        int len;
+
+        while (offset < length && (len = inputStream.read(data, offset, length - offset)) != -1) {
+            offset += len;
+            readBytes += len;
+            checkInterrupted();
+        }
 
-            saveContent(bos);
-        } finally {
-            closeQuietly(bos);
-            closeQuietly(fos);
+        if (offset < length) {
+            throw new IOException("Expected " + length + " bytes, but only got " + offset);
         }
 
-        return this;
+        return data;
     }
 
     /**
-     * Save the result to an output stream.
+     * Read the rest of a response of unknown length.
      *
-     * @param out the output stream
-     * @return this object
+     * @param initialSize the initial size of the buffer
+     * @return the data
      * @throws IOException on I/O error
      * @throws InterruptedException on interruption
      */
-    public HttpRequest saveContent(OutputStream out) throws IOException, InterruptedException {
-        BufferedInputStream bis;
-        TimerTask timerTask = SwingProgressObserver.updatePeriodically(this);
-
-        try {
-            String field = conn.getHeaderField("Content-Length");
-            if (field != null) {
-                long len = Long.parseLong(field);
-                if (len >= 0) { // Let's just not deal with really big numbers
-                    contentLength = len;
-                }
-            }
-        } catch (NumberFormatException e) {
-        }
+    private ByteArrayOutputStream readUnknown(int initialSize) throws IOException, InterruptedException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(initialSize);
+        BufferPool pool = BufferPool.getInstance();
+        byte[] buffer = pool.acquire();
 
         try {
-            bis = new BufferedInputStream(inputStream);
-
-            byte[] data = new byte[READ_BUFFER_SIZE];
-            int len = 0;
-            while ((len = bis.read(data, 0, READ_BUFFER_SIZE)) >= 0) {
-                out.write(data, 0, len);
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                bos.write(buffer, 0, len);
                 readBytes += len;
                 checkInterrupted();
             }
         } finally {
-            timerTask.cancel();
-            close();
+            pool.release(buffer);
+        }
+
+        return bos;
+    }
+
+    /**
+     * Return the response as an instance of the given class that has been
+     * deserialized from a JSON payload, reading directly from the connection
+     * without buffering the response first.
+     *
+     * @param cls the class
+     * @return the object
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public <T> T asJson(Class<T> cls) throws IOException, InterruptedException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        boolean successful = false;
+
+        try {
+            T object = Codecs.getReader(cls).readValue(new InterruptibleInputStream(inputStream));
+            successful = true;
+            return object;
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } finally {
+            close(!successful);
+        }
+    }
+
+    /**
+     * Return the response as an instance of the given class that has been
+     * deserialized from a XML payload, reading directly from the connection
+     * without buffering the response first.
+     *
+     * @param cls the class
+     * @return the object
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T asXml(Class<T> cls) throws IOException, InterruptedException {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("No input stream available");
+        }
+
+        boolean successful = false;
+
+        try {
+            Unmarshaller um = Codecs.createUnmarshaller(cls);
+            T object = (T) um.unmarshal(new InterruptibleInputStream(inputStream));
+            successful = true;
+            return object;
+        } catch (JAXBException e) {
+            if (Thread.currentThread().isInterrupted() ||
+                    e.getLinkedException() instanceof InterruptedIOException) {
+                throw new InterruptedException();
+            }
+            throw new IOException(e);
+        } finally {
+            close(!successful);
+        }
+    }
+
+    /**
+     * Get the length of the response body announced by the server.
+     *
+     * @return the length, or -1 if it is not known
+     */
+    private long getContentLength() {
+        try {
+            String field = response.getHeaderField("Content-Length");
+            if (field != null) {
+                long len = Long.parseLong(field);
+                if (len >= 0) { // Let's just not deal with really big numbers
+                    return len;
+                }
+            }
+        } catch (NumberFormatException e) {
+        }
+
+        return -1;
+    }
+
+    /**
+     * Save the result to a file.
+     *
+     * @param file the file
+     * @return this object
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public HttpRequest saveContent(File file) throws IOException, InterruptedException {
+        FileOutputStream fos = null;
+        BufferedOutputStream bos = null;
+
+        try {
+            fos = openOutput(file, getResponseCode(), response.getHeaderField("Content-Range"),
+                    getValidator(response.getHeaderField("ETag"), response.getHeaderField("Last-Modified")));
+            bos = new BufferedOutputStream(fos);
+
+            saveContent(bos);
+        } finally {
+            closeQuietly(bos);
+            closeQuietly(fos);
+        }
+
+        completeOutput(file);
+        return this;
+    }
+
+    /**
+     * Open a file to save the body to, appending to it if the response is the
+     * rest of a body that was requested with {@link #resumable(File)}.
+     *
+     * @param file the file
+     * @param responseCode the response code
+     * @param contentRange the Content-Range header, or null
+     * @param validator the validator of the response, or null
+     * @return the stream
+     * @throws IOException on I/O error, or if the range that was sent is not
+     *                     the one that was asked for
+     */
+    private FileOutputStream openOutput(File file, int responseCode, String contentRange, String validator)
+            throws IOException {
+        boolean append = false;
+
+        if (responseCode == 206 && rangeOffset > 0) {
+            if (contentRange == null || !contentRange.trim().startsWith("bytes " + rangeOffset + "-")) {
+                discardPartial();
+                throw new IOException("Asked for bytes from " + rangeOffset + ", but got " + contentRange);
+            }
+
+            append = true;
+            metrics.setResumedBytes(rangeOffset);
+            log.log(Level.INFO, "Resuming {0} from {1} bytes", new Object[] { url, rangeOffset });
+        }
+
+        digest = null;
+        if (checksum != null) {
+            digest = Checksums.createDigest(checksum);
+            if (append) {
+                Checksums.update(digest, file, 0, rangeOffset);
+            }
+        }
+
+        if (resumeFile != null && !append) {
+            File validatorFile = getValidatorFile(resumeFile);
+
+            if (validator != null) {
+                FileUtils.writeStringToFile(validatorFile, validator, "UTF-8");
+            } else {
+                validatorFile.delete();
+            }
+        }
+
+        return new FileOutputStream(file, append);
+    }
+
+    /**
+     * Check the checksum of a file that was saved, if one is expected, and
+     * forget what was needed to resume the download once the file is complete.
+     *
+     * @param file the file that was saved
+     * @throws ChecksumMismatchException if the checksum does not match, in
+     *                                   which case the file is deleted
+     */
+    private void completeOutput(File file) throws ChecksumMismatchException {
+        if (digest != null) {
+            try {
+                Checksums.verify(digest, checksum, url);
+            } catch (ChecksumMismatchException e) {
+                file.delete();
+                discardPartial();
+                throw e;
+            } finally {
+                digest = null;
+            }
+        }
+
+        if (resumeFile != null && resumeFile.equals(file)) {
+            getValidatorFile(resumeFile).delete();
+        }
+    }
+
+    /**
+     * Delete the partial body and its validator, so that the next attempt
+     * downloads the whole body.
+     */
+    private void discardPartial() {
+        if (resumeFile != null) {
+            resumeFile.delete();
+            getValidatorFile(resumeFile).delete();
+        }
+    }
+
+    /**
+     * Delete a partial download made with {@link #resumable(File)} and its
+     * validator.
+     *
+     * @param file the file
+     */
+    public static void discardPartial(File file) {
+        file.delete();
+        getValidatorFile(file).delete();
+    }
+
+    /**
+     * Get the validator of a response that can be sent in an
+     * {@code If-Range} header.
+     *
+     * @param etag the ETag header, or null
+     * @param lastModified the Last-Modified header, or null
+     * @return the validator, or null if there is none
+     */
+    static String getValidator(String etag, String lastModified) {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag; // Weak ETags cannot be used with If-Range
+        }
+
+        return lastModified;
+    }
+
+    private static File getValidatorFile(File file) {
+        return new File(file.getParentFile(), file.getName() + VALIDATOR_SUFFIX);
+    }
+
+    /**
+     * Save the result to an output stream.
+     *
+     * @param out the output stream
+     * @return this object
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public HttpRequest saveContent(OutputStream out) throws IOException, InterruptedException {
+        TimerTask timerTask = SwingProgressObserver.updatePeriodically(this);
+        BufferPool pool = BufferPool.getInstance();
+        byte[] data = pool.acquire();
+        boolean successful = false;
+
+        contentLength = getContentLength();
+
+        try {
+            int len = 0;
+            while ((len = inputStream.read(data)) >= 0) {
+                out.write(data, 0, len);
+                readBytes += len;
+
+                if (digest != null) {
+                    digest.update(data, 0, len);
+                }
+
+                bandwidthJob.acquire(len);
+                checkInterrupted();
+
+                if (stallDetector != null) {
+                    stallDetector.update(len);
+                }
+            }
+
+            successful = true;
+        } finally {
+            pool.release(data);
+            timerTask.cancel();
+            close(!successful);
         }
 
         return this;
     }
 
+    /**
+     * Execute the request and save the response to a file without blocking the
+     * calling thread, if the transport is an {@link AsyncHttpTransport}.
+     *
+     * <p>The response is requested without compression and written to the file
+     * as it arrives. Other transports carry out the request on the calling
+     * thread and return a future that has already completed. Cancelling the
+     * future aborts the request.</p>
+     *
+     * @param file the file
+     * @param codes the expected response codes
+     * @return a future that completes with this object once the file is saved
+     */
+    public ListenableFuture<HttpRequest> saveContentAsync(File file, int ... codes) {
+        final SettableFuture<HttpRequest> future = SettableFuture.create();
+
+        if (!(transport instanceof AsyncHttpTransport)) {
+            try {
+                execute().expectResponseCode(codes).saveContent(file);
+                future.set(this);
+            } catch (IOException e) {
+                future.setException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.setException(e);
+            }
+            return future;
+        }
+
+        compression = false;
+        startedAt = System.nanoTime();
+
+        try {
+            CircuitBreaker breaker = getCircuitBreaker();
+            if (breaker != null) {
+                breaker.checkRequest();
+            }
+
+            final AsyncHttpTransport.Exchange exchange =
+                    ((AsyncHttpTransport) transport).send(this, new FileSink(file, future, codes));
+
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isCancelled()) {
+                        exchange.cancel();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        } catch (IOException e) {
+            report(true);
+            future.setException(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Get the number of bytes of the response body received over the wire,
+     * which is less than {@link #getReadBytes()} if the response is compressed.
+     *
+     * @return the number of bytes
+     */
+    public long getTransferredBytes() {
+        return rawStream != null ? rawStream.getCount() : readBytes;
+    }
+
+    /**
+     * Get the number of bytes of the decoded response body read so far.
+     *
+     * @return the number of bytes
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Get the length of the whole body on the wire, including any part that
+     * was resumed from a previous download.
+     *
+     * @return the number of bytes, or -1 if it is not known yet
+     */
+    public long getTotalLength() {
+        return contentLength >= 0 ? metrics.getResumedBytes() + contentLength : -1;
+    }
+
+    /**
+     * Get the number of bytes of the whole body on the wire that are done,
+     * including any part that was resumed from a previous download.
+     *
+     * @return the number of bytes
+     */
+    public long getReceivedBytes() {
+        return metrics.getResumedBytes() + getTransferredBytes();
+    }
+
     @Override
     public void updateProgress() {
         double progress = -1;
 
-        if (contentLength >= 0) {
-            progress = readBytes / (double) contentLength;
+        // The content length counts bytes on the wire, whether compressed or not
+        long total = getTotalLength();
+        if (total >= 0) {
+            progress = getReceivedBytes() / (double) total;
         }
 
         push(progress, SharedLocale._("downloader.downloadingSingle", url.toString()));
     }
 
+    /**
+     * Finish the request, returning the connection to the
+     * {@link HttpConnectionPool} if possible.
+     *
+     * @throws IOException on I/O error
+     */
     @Override
     public void close() throws IOException {
-        if (conn != null) conn.disconnect();
+        close(false);
+    }
+
+    /**
+     * Abort the request, tearing down the connection. This may be called from
+     * another thread than the one reading the response, which then fails.
+     */
+    public void abort() {
+        close(true);
+    }
+
+    /**
+     * Finish the request.
+     *
+     * @param abort true to tear down the connection without reading the rest
+     *              of the response, as after a failed or cancelled read
+     */
+    private void close(boolean abort) {
+        HttpTransport.Response response;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            response = this.response;
+        }
+
+        if (cacheWriter != null) {
+            if (abort) {
+                cacheWriter.discard();
+            } else {
+                cacheWriter.finish();
+            }
+        }
+
+        if (response != null) {
+            response.close(abort);
+        }
+
+        if (inputStream != rawStream) {
+            closeQuietly(inputStream); // Release the decompressor
+        }
+
+        report(abort);
+    }
+
+    /**
+     * Get the circuit breaker for the host of this request.
+     *
+     * @return the breaker, or null if the URL has no host
+     */
+    private CircuitBreaker getCircuitBreaker() {
+        String host = url.getHost();
+        return host != null && !host.isEmpty() ? CircuitBreaker.forHost(host) : null;
+    }
+
+    /**
+     * Get whether the given error means that the server could not be reached
+     * or did not answer, rather than that the request was interrupted.
+     *
+     * @param e the error
+     * @return true if the server did not answer
+     */
+    private static boolean isConnectionFailure(IOException e) {
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+
+    /**
+     * Complete the metrics of this request and pass them to the listeners.
+     *
+     * @param failed true if the request failed
+     */
+    private void report(boolean failed) {
+        synchronized (metrics) {
+            if (reported) {
+                return;
+            }
+            reported = true;
+        }
+
+        long now = System.nanoTime();
+        if (responseAt != 0) {
+            metrics.record(RequestMetrics.Phase.TRANSFER, now - responseAt);
+        }
+        metrics.setTotalNanos(now - startedAt);
+        metrics.setTransferredBytes(getTransferredBytes());
+        metrics.setReadBytes(readBytes);
+        metrics.setFailed(metrics.isFailed() || failed);
+
+        for (Listener listener : listeners) {
+            try {
+                listener.requestFinished(metrics);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "HTTP request listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Add a listener that is told about every request once it finishes.
+     *
+     * @param listener the listener
+     */
+    public static void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a listener added with {@link #addListener(Listener)}.
+     *
+     * @param listener the listener
+     */
+    public static void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the transport used by new requests.
+     *
+     * @return the transport
+     */
+    public static HttpTransport getDefaultTransport() {
+        return defaultTransport;
+    }
+
+    /**
+     * Set the transport used by new requests.
+     *
+     * @param transport the transport
+     */
+    public static void setDefaultTransport(@NonNull HttpTransport transport) {
+        defaultTransport = transport;
+    }
+
+    /**
+     * Create the default transport, which is a {@link NioHttpTransport} if the
+     * property {@code com.sk89q.skmcl.util.HttpRequest.transport} is "nio", and
+     * otherwise a {@link UrlConnectionTransport}.
+     *
+     * @return the transport
+     */
+    private static HttpTransport createDefaultTransport() {
+        String name = System.getProperty(HttpRequest.class.getCanonicalName() + ".transport", "");
+        if (name.equalsIgnoreCase("nio")) {
+            return new NioHttpTransport();
+        } else {
+            return new UrlConnectionTransport();
+        }
     }
 
     /**
@@ -378,6 +1374,109 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
         }
     }
 
+    /**
+     * Writes the body of a response received by {@link #saveContentAsync(File, int...)}
+     * to a file.
+     */
+    private class FileSink implements AsyncHttpTransport.ResponseHandler {
+        private final File file;
+        private final SettableFuture<HttpRequest> future;
+        private final int[] codes;
+        private FileOutputStream out;
+        private FileChannel channel;
+        private boolean responded;
+
+        private FileSink(File file, SettableFuture<HttpRequest> future, int[] codes) {
+            this.file = file;
+            this.future = future;
+            this.codes = codes;
+        }
+
+        @Override
+        public void onResponse(AsyncHttpTransport.Exchange exchange) throws IOException {
+            int responseCode = exchange.getResponseCode();
+            responded = true;
+
+            CircuitBreaker breaker = getCircuitBreaker();
+            if (breaker != null) {
+                breaker.recordResponse(responseCode);
+            }
+
+            if (!isExpected(responseCode, codes)) {
+                metrics.setResponseCode(responseCode);
+                throw new UnexpectedResponseException(responseCode);
+            }
+
+            try {
+                String field = exchange.getHeaderField("Content-Length");
+                contentLength = field != null ? Long.parseLong(field) : -1;
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+
+            responseAt = System.nanoTime();
+            metrics.setResponseCode(responseCode);
+
+            out = openOutput(file, responseCode, exchange.getHeaderField("Content-Range"),
+                    getValidator(exchange.getHeaderField("ETag"), exchange.getHeaderField("Last-Modified")));
+            channel = out.getChannel();
+        }
+
+        @Override
+        public void onData(ByteBuffer data) throws IOException {
+            int len = data.remaining();
+
+            if (digest != null) {
+                digest.update(data.duplicate());
+            }
+
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+
+            readBytes += len;
+
+            if (stallDetector != null) {
+                stallDetector.update(len);
+            }
+        }
+
+        @Override
+        public void onComplete() throws IOException {
+            out.close();
+            completeOutput(file);
+            report(false);
+            future.set(HttpRequest.this);
+        }
+
+        @Override
+        public void onFailure(IOException e) {
+            CircuitBreaker breaker = getCircuitBreaker();
+            if (breaker != null && !responded && !future.isCancelled() && isConnectionFailure(e)) {
+                breaker.recordFailure();
+            }
+
+            closeQuietly(out);
+            report(true);
+            future.setException(e);
+        }
+    }
+
+    /**
+     * Told about each request once it has finished.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a request has finished, successfully or not, on the
+         * thread that finished it.
+         *
+         * @param metrics the metrics of the request
+         */
+        void requestFinished(RequestMetrics metrics);
+
+    }
+
     /**
      * Used with {@link #bodyForm(Form)}.
      */
@@ -467,7 +1566,7 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
          * @throws IOException on I/O error
          */
         public <T> T asJson(Class<T> cls) throws IOException {
-            return mapper.readValue(asString("UTF-8"), cls);
+            return Codecs.getReader(cls).readValue(data);
         }
 
         /**
@@ -479,8 +1578,7 @@ public class HttpRequest extends WorkUnit implements Closeable, ProgressUpdater
          */
         public <T> T asXml(Class<T> cls) throws IOException {
             try {
-                JAXBContext context = JAXBContext.newInstance(cls);
-                Unmarshaller um = context.createUnmarshaller();
+                Unmarshaller um = Codecs.createUnmarshaller(cls);
                 return (T) um.unmarshal(new ByteArrayInputStream(data));
             } catch (JAXBException e) {
                 throw new IOException(e);
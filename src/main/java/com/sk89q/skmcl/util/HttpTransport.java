@@ -0,0 +1,77 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Carries out the network exchange for an {@link HttpRequest}.
+ */
+public interface HttpTransport {
+
+    /**
+     * Send the given request and wait for the head of the response.
+     *
+     * @param request the request
+     * @return the response
+     * @throws IOException on I/O error
+     */
+    Response open(HttpRequest request) throws IOException;
+
+    /**
+     * The response to a request sent by a transport.
+     */
+    interface Response {
+
+        /**
+         * Get the response code.
+         *
+         * @return the response code
+         * @throws IOException on I/O error
+         */
+        int getResponseCode() throws IOException;
+
+        /**
+         * Get the value of a response header.
+         *
+         * @param name the name of the header, which is not case sensitive
+         * @return the value, or null if the header was not sent
+         */
+        String getHeaderField(String name);
+
+        /**
+         * Get the response body as sent by the server, without any content
+         * encoding removed.
+         *
+         * @return the body, or null if there is none
+         */
+        InputStream getBody();
+
+        /**
+         * Finish with the response.
+         *
+         * @param abort true if the body was not read in full and the connection
+         *              should not be reused
+         */
+        void close(boolean abort);
+
+    }
+
+}
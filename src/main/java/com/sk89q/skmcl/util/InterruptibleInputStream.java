@@ -0,0 +1,73 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Checks the thread interruption flag before every read, so that a parser
+ * consuming the stream can be cancelled.
+ *
+ * <p>Closing this stream leaves the underlying stream open, because parsers
+ * close their input when done and the owner of the stream may still want to
+ * finish reading it.</p>
+ */
+class InterruptibleInputStream extends FilterInputStream {
+
+    /**
+     * Create a new instance.
+     *
+     * @param in the stream to read from
+     */
+    InterruptibleInputStream(InputStream in) {
+        super(in);
+    }
+
+    private void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkInterrupted();
+        return super.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkInterrupted();
+        return super.read(b, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        checkInterrupted();
+        return super.skip(n);
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
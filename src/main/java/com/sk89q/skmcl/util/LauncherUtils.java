@@ -109,12 +109,14 @@ public final class LauncherUtils {
         Thread thread = new Thread(new Runnable() {
             @Override
             public void run() {
-                byte[] buffer = new byte[1024];
+                BufferPool pool = BufferPool.getInstance();
+                byte[] buffer = pool.acquire();
                 try {
                     while (in.read(buffer) != -1) {
                     }
                 } catch (IOException e) {
                 } finally {
+                    pool.release(buffer);
                     closeQuietly(in);
                 }
             }
@@ -210,4 +212,27 @@ public final class LauncherUtils {
         return value.equalsIgnoreCase("true");
     }
 
+    /**
+     * Get the numeric value of the property {class}.{key}.
+     *
+     * @param cls the class
+     * @param key the key
+     * @param def the value to return if the property is unset or invalid
+     * @return the value
+     */
+    public static long getSystemProperty(Class<?> cls, String key, long def) {
+        String name = cls.getCanonicalName() + "." + key;
+        String value = System.getProperty(name);
+
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                getLogger(LauncherUtils.class).warning("Ignoring invalid value for " + name);
+            }
+        }
+
+        return def;
+    }
+
 }
@@ -0,0 +1,357 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.Setter;
+import lombok.extern.java.Log;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * Knows the mirrors of each class of resource, and the order in which to try
+ * them for a given URL.
+ *
+ * <p>A resource class, such as the libraries of a game, is registered with the
+ * base URL of its origin, and may be given an ordered list of mirror base
+ * URLs. A URL under the origin is then served by each mirror under the same
+ * path, and by the origin itself after every mirror unless the origin is
+ * listed among them, in which case it is ranked like any other mirror.</p>
+ *
+ * <p>The mirrors are ranked by what has been seen of their hosts, which is
+ * kept in {@link Stats} and can be saved across sessions: mirrors that have
+ * not been measured yet are tried first, in the configured order, so that
+ * they get measured, then measured ones by the time that they would take to
+ * send a file of the given size, and last those that are failing. The
+ * measurements are taken from every finished request, as an
+ * {@link HttpRequest.Listener}.</p>
+ */
+@Log
+public class MirrorList implements HttpRequest.Listener {
+
+    private static final double SMOOTHING = 0.3;
+    private static final long MIN_THROUGHPUT_BYTES = 64 * 1024;
+    private static final long FAILURE_MEMORY = 60 * 1000;
+    private static final long DEFAULT_SIZE = 256 * 1024;
+    private static MirrorList defaultList;
+
+    private final Map<String, String> origins = new HashMap<String, String>();
+    private final Map<String, List<String>> mirrors = new HashMap<String, List<String>>();
+    private final Stats stats;
+
+    /**
+     * Create a new list.
+     *
+     * @param stats the measurements of hosts, which are updated as requests finish
+     */
+    public MirrorList(@NonNull Stats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Register a class of resource.
+     *
+     * @param name the name of the class, as used in configuration
+     * @param origin the base URL of the origin
+     */
+    public synchronized void addResourceClass(@NonNull String name, @NonNull String origin) {
+        origins.put(name, origin);
+    }
+
+    /**
+     * Set the mirrors of each class of resource.
+     *
+     * @param config a map of class names to ordered lists of base URLs
+     */
+    public synchronized void setMirrors(@NonNull Map<String, List<String>> config) {
+        mirrors.clear();
+        for (Map.Entry<String, List<String>> entry : config.entrySet()) {
+            if (!origins.containsKey(entry.getKey())) {
+                log.log(Level.WARNING, "Ignoring mirrors for unknown resource class {0}", entry.getKey());
+            } else if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                mirrors.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Get the URLs to try for the given URL, in the order to try them.
+     *
+     * @param url the URL
+     * @param size the size of the file, or -1 if it is not known
+     * @return a list that contains the given URL if it has no mirrors, and
+     *         ends with it if its origin is not one of the mirrors
+     */
+    public List<URL> getCandidates(@NonNull URL url, long size) {
+        String path = url.toString();
+        List<String> bases = null;
+        String origin = null;
+
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : origins.entrySet()) {
+                if (path.startsWith(entry.getValue()) && mirrors.containsKey(entry.getKey())) {
+                    origin = entry.getValue();
+                    bases = mirrors.get(entry.getKey());
+                    break;
+                }
+            }
+        }
+
+        if (bases == null) {
+            return Collections.singletonList(url);
+        }
+
+        String rest = path.substring(origin.length());
+        boolean listed = false;
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (int i = 0; i < bases.size(); i++) {
+            String base = bases.get(i);
+            if (trimSlash(base).equals(trimSlash(origin))) {
+                listed = true;
+            }
+            try {
+                URL candidate = new URL(base.endsWith("/") || rest.isEmpty() ? base + rest : base + "/" + rest);
+                candidates.add(new Candidate(candidate, i, rank(candidate.getHost(), size)));
+            } catch (MalformedURLException e) {
+                log.log(Level.WARNING, "Ignoring invalid mirror {0}", base);
+            }
+        }
+
+        Collections.sort(candidates);
+
+        List<URL> urls = new ArrayList<URL>();
+        for (Candidate candidate : candidates) {
+            urls.add(candidate.url);
+        }
+        if (!listed || urls.isEmpty()) {
+            urls.add(url);
+        }
+        return urls;
+    }
+
+    private static String trimSlash(String base) {
+        return base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+    }
+
+    /**
+     * Get the rank of a host, where lower is better: 0 if it has not been
+     * measured, the estimated time in milliseconds plus one to send a file of
+     * the given size if it has, or infinity if it is failing.
+     *
+     * @param host the host
+     * @param size the size of the file, or -1 if it is not known
+     * @return the rank
+     */
+    private double rank(String host, long size) {
+        if (CircuitBreaker.forHost(host).isOpen()) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        synchronized (stats) {
+            Host measured = stats.getHosts().get(host);
+            if (measured == null || measured.getLatency() <= 0) {
+                return 0;
+            }
+            if (measured.getLastFailure() > measured.getLastSuccess() &&
+                    System.currentTimeMillis() - measured.getLastFailure() < FAILURE_MEMORY) {
+                return Double.POSITIVE_INFINITY;
+            }
+
+            double time = measured.getLatency();
+            if (measured.getThroughput() > 0) {
+                time += (size >= 0 ? size : DEFAULT_SIZE) * 1000.0 / measured.getThroughput();
+            }
+            return time + 1;
+        }
+    }
+
+    @Override
+    public void requestFinished(RequestMetrics metrics) {
+        String host = metrics.getHost();
+        int code = metrics.getResponseCode();
+        long now = System.currentTimeMillis();
+
+        if (host == null || host.isEmpty() || metrics.isFromCache()) {
+            return;
+        }
+
+        synchronized (stats) {
+            Host measured = stats.getHosts().get(host);
+            if (measured == null) {
+                measured = new Host();
+                stats.getHosts().put(host, measured);
+            }
+
+            if (metrics.isFailed()) {
+                // Only an unanswered request or a server error says something about the host
+                if (code < 0 || code >= 500) {
+                    measured.setLastFailure(now);
+                }
+                return;
+            }
+
+            measured.setLastSuccess(now);
+
+            long latency = metrics.getNanos(RequestMetrics.Phase.FIRST_BYTE);
+            if (latency > 0) {
+                measured.setLatency(smooth(measured.getLatency(), latency / 1e6));
+            }
+
+            long transferNanos = metrics.getNanos(RequestMetrics.Phase.TRANSFER);
+            if (metrics.getTransferredBytes() >= MIN_THROUGHPUT_BYTES && transferNanos > 0) {
+                measured.setThroughput(smooth(measured.getThroughput(),
+                        metrics.getTransferredBytes() * 1e9 / transferNanos));
+            }
+        }
+    }
+
+    private static double smooth(double previous, double value) {
+        return previous > 0 ? previous + SMOOTHING * (value - previous) : value;
+    }
+
+    /**
+     * Save the measurements of hosts, if they were loaded from a file.
+     */
+    public void save() {
+        synchronized (stats) {
+            Persistence.commitAndForget(stats);
+        }
+    }
+
+    /**
+     * Make a request to each mirror of the given URL in turn, until one
+     * succeeds.
+     *
+     * @param url the URL
+     * @param request the request to make
+     * @param <T> the type of the result
+     * @return the result of the first request that succeeded
+     * @throws IOException the error of the last mirror, if every one failed
+     * @throws InterruptedException on interruption
+     */
+    public static <T> T execute(@NonNull URL url, @NonNull Request<T> request)
+            throws IOException, InterruptedException {
+        MirrorList list = getDefault();
+        List<URL> candidates = list != null ? list.getCandidates(url, -1) : Collections.singletonList(url);
+        IOException error = null;
+
+        for (URL candidate : candidates) {
+            try {
+                return request.execute(candidate);
+            } catch (IOException e) {
+                if (candidates.size() > 1) {
+                    log.log(Level.INFO, "Failed to get {0}: {1}", new Object[] { candidate, e.getMessage() });
+                }
+                error = e;
+            }
+        }
+
+        throw error;
+    }
+
+    /**
+     * Get the list used by downloads.
+     *
+     * @return the list, or null if there is none
+     */
+    public static synchronized MirrorList getDefault() {
+        return defaultList;
+    }
+
+    /**
+     * Set the list used by downloads.
+     *
+     * @param list the list, or null to use only origins
+     */
+    public static synchronized void setDefault(MirrorList list) {
+        defaultList = list;
+    }
+
+    /**
+     * A request that can be made to any mirror of a URL.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Request<T> {
+
+        /**
+         * Make the request.
+         *
+         * @param url the URL of the mirror
+         * @return the result
+         * @throws IOException on I/O error
+         * @throws InterruptedException on interruption
+         */
+        T execute(URL url) throws IOException, InterruptedException;
+
+    }
+
+    /**
+     * The measurements of the hosts that have been contacted.
+     *
+     * <p>This is not a value class, because {@link Persistence} finds the file
+     * of a bound object by its hash code, which must not change as hosts are
+     * measured.</p>
+     */
+    @Getter @Setter
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Stats {
+        private Map<String, Host> hosts = new HashMap<String, Host>();
+    }
+
+    /**
+     * The measurements of a host.
+     */
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Host {
+        /** The smoothed time to the first byte, in milliseconds. */
+        private double latency;
+        /** The smoothed rate of the bodies of large responses, in bytes per second. */
+        private double throughput;
+        private long lastSuccess;
+        private long lastFailure;
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        private final URL url;
+        private final int order;
+        private final double rank;
+
+        private Candidate(URL url, int order, double rank) {
+            this.url = url;
+            this.order = order;
+            this.rank = rank;
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            int c = Double.compare(rank, o.rank);
+            return c != 0 ? c : (order < o.order ? -1 : (order > o.order ? 1 : 0));
+        }
+    }
+
+}
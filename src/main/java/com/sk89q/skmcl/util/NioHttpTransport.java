@@ -0,0 +1,1442 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.java.Log;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import static com.sk89q.skmcl.util.LauncherUtils.getSystemProperty;
+
+/**
+ * A transport that multiplexes requests over non-blocking sockets, so that many
+ * transfers can be in flight on a small number of threads.
+ *
+ * <p>Each host is served by one selector thread, which keeps the connections
+ * to that host, reuses them for later requests, and queues requests once
+ * {@link HttpConnectionPool#getMaxPerHost()} connections are open. Requests made
+ * through the blocking {@link #open(HttpRequest)} method buffer a limited
+ * amount of the body ahead of the reader.</p>
+ *
+ * <p>Only plain HTTP/1.1 and HTTPS are spoken; proxies are not supported. The
+ * number of threads can be set with the system property
+ * {@code com.sk89q.skmcl.util.NioHttpTransport.threads}.</p>
+ */
+@Log
+public class NioHttpTransport implements AsyncHttpTransport {
+
+    private static final long TICK_INTERVAL = 250;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_LINE_LENGTH = 1024 * 8;
+    private static final int BUFFER_SIZE = 1024 * 32;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final EventLoop[] loops;
+
+    @Getter @Setter
+    private volatile long idleTimeout = 5000;
+
+    /**
+     * Create a new transport with the default number of threads.
+     */
+    public NioHttpTransport() {
+        this((int) getSystemProperty(NioHttpTransport.class, "threads", 2));
+    }
+
+    /**
+     * Create a new transport.
+     *
+     * @param threads the number of selector threads
+     */
+    public NioHttpTransport(int threads) {
+        loops = new EventLoop[Math.max(1, threads)];
+
+        for (int i = 0; i < loops.length; i++) {
+            try {
+                loops[i] = new EventLoop(Selector.open());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open a selector", e);
+            }
+
+            Thread thread = new Thread(loops[i], "NioHttpTransport-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public Response open(HttpRequest request) throws IOException {
+        BlockingResponse response = new BlockingResponse();
+        response.setExchange(send(request, response));
+        response.awaitHead();
+        return response;
+    }
+
+    @Override
+    public Exchange send(HttpRequest request, ResponseHandler handler) throws IOException {
+        NioExchange exchange = new NioExchange(request, handler);
+        exchange.prepare(request.getUrl());
+        exchange.submit();
+        return exchange;
+    }
+
+    /**
+     * Get the event loop that serves the given host.
+     *
+     * @param hostKey the host key
+     * @return the event loop
+     */
+    private EventLoop getLoop(String hostKey) {
+        return loops[(hostKey.hashCode() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * The state of a single request, which may move between connections if
+     * it is retried or redirected.
+     */
+    private class NioExchange implements Exchange {
+        private final HttpRequest request;
+        private final RequestMetrics metrics;
+        private final ResponseHandler handler;
+        private final String method;
+
+        private URL url;
+        private boolean secure;
+        private String host;
+        private int port;
+        private String hostKey;
+        private InetSocketAddress address;
+        private ByteBuffer requestData;
+
+        private volatile int responseCode = -1;
+        private volatile Map<String, String> responseHeaders = Collections.emptyMap();
+        private volatile boolean paused;
+        private volatile NioConnection connection;
+        private volatile EventLoop loop;
+        private boolean done;
+        private boolean received;
+        private boolean retried;
+        private int redirects;
+        private URL redirect;
+        private long queuedAt;
+        private long sentAt;
+
+        private NioExchange(HttpRequest request, ResponseHandler handler) {
+            this.request = request;
+            this.metrics = request.getMetrics();
+            this.handler = handler;
+            this.method = request.getMethod();
+        }
+
+        /**
+         * Resolve the host and build the request for the given URL.
+         *
+         * @param url the URL
+         * @throws IOException on I/O error
+         */
+        private void prepare(URL url) throws IOException {
+            String protocol = url.getProtocol().toLowerCase();
+            if (protocol.equals("https")) {
+                secure = true;
+            } else if (protocol.equals("http")) {
+                secure = false;
+            } else {
+                throw new MalformedURLException("Unsupported protocol: " + protocol);
+            }
+
+            this.url = url;
+            host = url.getHost();
+            port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            hostKey = protocol + "://" + host + ":" + port;
+            long resolveStarted = System.nanoTime();
+            address = new InetSocketAddress(host, port);
+            metrics.recordSince(RequestMetrics.Phase.DNS, resolveStarted);
+
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+
+            Map<String, String> headers = request.getHeaders();
+            String file = url.getFile().isEmpty() ? "/" : url.getFile();
+            StringBuilder head = new StringBuilder();
+            head.append(method).append(" ").append(file).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(host);
+            if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+                head.append(":").append(port);
+            }
+            head.append("\r\n");
+            if (!containsIgnoreCase(headers, "User-Agent")) {
+                head.append("User-Agent: Java/").append(System.getProperty("java.version")).append("\r\n");
+            }
+            if (!containsIgnoreCase(headers, "Accept")) {
+                head.append("Accept: */*\r\n");
+            }
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+
+            byte[] body = request.getBody();
+            if (body != null) {
+                head.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+            head.append("\r\n");
+
+            byte[] headData = head.toString().getBytes("ISO-8859-1");
+            requestData = ByteBuffer.allocate(headData.length + (body != null ? body.length : 0));
+            requestData.put(headData);
+            if (body != null) {
+                requestData.put(body);
+            }
+            requestData.flip();
+        }
+
+        /**
+         * Queue this exchange on the event loop for its host.
+         */
+        private void submit() {
+            queuedAt = System.nanoTime();
+            loop = getLoop(hostKey);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loop.dispatch(NioExchange.this);
+                }
+            });
+        }
+
+        /**
+         * Follow the redirect found in the last response.
+         */
+        private void followRedirect() {
+            URL target = redirect;
+            redirect = null;
+            redirects++;
+            responseCode = -1;
+            responseHeaders = Collections.emptyMap();
+            received = false;
+            retried = false;
+
+            try {
+                prepare(target);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            submit();
+        }
+
+        /**
+         * Complete the exchange successfully.
+         */
+        private void succeed() {
+            if (done) {
+                return;
+            }
+
+            done = true;
+
+            try {
+                handler.onComplete();
+            } catch (IOException e) {
+                handler.onFailure(e);
+            } catch (RuntimeException e) {
+                handler.onFailure(new IOException(e));
+            }
+        }
+
+        /**
+         * Fail the exchange.
+         *
+         * @param e the error
+         */
+        private void fail(IOException e) {
+            if (done) {
+                return;
+            }
+
+            done = true;
+            handler.onFailure(e);
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return responseHeaders.get(name.toLowerCase());
+        }
+
+        @Override
+        public void pause() {
+            paused = true;
+        }
+
+        @Override
+        public void resume() {
+            if (!paused) {
+                return;
+            }
+
+            paused = false;
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    NioConnection conn = connection;
+                    if (conn != null && conn.exchange == NioExchange.this) {
+                        conn.resumeReading();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    IOException e = new IOException("Request was cancelled");
+                    NioConnection conn = connection;
+                    if (conn != null && conn.exchange == NioExchange.this) {
+                        conn.fail(e, false);
+                    } else {
+                        loop.removePending(NioExchange.this);
+                        fail(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * The connections to the hosts served by an event loop.
+     */
+    private static class HostState {
+        private final LinkedList<NioConnection> idle = new LinkedList<NioConnection>();
+        private final LinkedList<NioExchange> pending = new LinkedList<NioExchange>();
+        private int open;
+    }
+
+    /**
+     * A selector thread, which owns every connection registered with it.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Map<String, HostState> hosts = new HashMap<String, HostState>();
+        private final Set<NioConnection> connections = new HashSet<NioConnection>();
+        private long lastTick;
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Run a task on this loop.
+         *
+         * @param task the task
+         */
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(TICK_INTERVAL);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        ((NioConnection) key.attachment()).handle(key);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now - lastTick >= TICK_INTERVAL) {
+                        lastTick = now;
+                        for (NioConnection conn : new ArrayList<NioConnection>(connections)) {
+                            conn.checkTimeouts(now);
+                        }
+                    }
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Unexpected error in the HTTP event loop", t);
+                }
+            }
+        }
+
+        private HostState getHost(String hostKey) {
+            HostState host = hosts.get(hostKey);
+            if (host == null) {
+                host = new HostState();
+                hosts.put(hostKey, host);
+            }
+            return host;
+        }
+
+        /**
+         * Start an exchange on an idle connection, a new connection, or queue it
+         * until a connection is free.
+         *
+         * @param exchange the exchange
+         */
+        private void dispatch(NioExchange exchange) {
+            if (exchange.done) {
+                return;
+            }
+
+            HostState host = getHost(exchange.hostKey);
+            NioConnection conn;
+
+            // Prefer the most recently used connection, which is the least likely
+            // to have been closed by the server
+            while ((conn = host.idle.pollLast()) != null) {
+                if (!conn.closed) {
+                    conn.assign(exchange);
+                    return;
+                }
+            }
+
+            int maxPerHost = HttpConnectionPool.getInstance().getMaxPerHost();
+            if (maxPerHost <= 0 || host.open < maxPerHost) {
+                host.open++;
+                conn = new NioConnection(this, host, exchange);
+                connections.add(conn);
+                conn.connect();
+            } else {
+                host.pending.add(exchange);
+            }
+        }
+
+        /**
+         * Give a connection whose exchange has finished to the next queued
+         * exchange, or park it as idle.
+         *
+         * @param conn the connection
+         */
+        private void release(NioConnection conn) {
+            NioExchange next = conn.host.pending.poll();
+            if (next != null) {
+                conn.assign(next);
+            } else {
+                conn.idleSince = System.currentTimeMillis();
+                conn.host.idle.add(conn);
+                conn.updateInterest();
+            }
+        }
+
+        /**
+         * Forget a connection that has been closed.
+         *
+         * @param conn the connection
+         */
+        private void closed(NioConnection conn) {
+            HostState host = conn.host;
+            host.open--;
+            host.idle.remove(conn);
+            connections.remove(conn);
+
+            int maxPerHost = HttpConnectionPool.getInstance().getMaxPerHost();
+            while (!host.pending.isEmpty() && (maxPerHost <= 0 || host.open < maxPerHost)) {
+                dispatch(host.pending.poll());
+            }
+        }
+
+        /**
+         * Remove an exchange that is waiting for a connection.
+         *
+         * @param exchange the exchange
+         */
+        private void removePending(NioExchange exchange) {
+            HostState host = hosts.get(exchange.hostKey);
+            if (host != null) {
+                host.pending.remove(exchange);
+            }
+        }
+    }
+
+    /**
+     * A connection to a host, which carries one exchange at a time.
+     */
+    private class NioConnection {
+        private static final int STATE_IDLE = 0;
+        private static final int STATE_STATUS = 1;
+        private static final int STATE_HEADERS = 2;
+        private static final int STATE_LENGTH = 3;
+        private static final int STATE_CHUNK_SIZE = 4;
+        private static final int STATE_CHUNK_DATA = 5;
+        private static final int STATE_CHUNK_END = 6;
+        private static final int STATE_TRAILER = 7;
+        private static final int STATE_UNTIL_CLOSE = 8;
+
+        private final EventLoop loop;
+        private final HostState host;
+        private final InetSocketAddress address;
+        private final boolean secure;
+        private final String hostName;
+        private final int port;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private ByteBuffer pendingOut;
+
+        private NioExchange exchange;
+        private boolean connected;
+        private boolean handshaking;
+        private boolean reused;
+        private boolean eof;
+        private boolean closed;
+        private long connectStarted;
+        private long connectStartedNanos;
+        private long handshakeStarted;
+        private long lastActivity;
+        private long idleSince;
+
+        private int state = STATE_IDLE;
+        private final StringBuilder line = new StringBuilder();
+        private boolean http11;
+        private int statusCode;
+        private Map<String, String> headers;
+        private boolean keepAlive;
+        private long remaining;
+
+        private NioConnection(EventLoop loop, HostState host, NioExchange exchange) {
+            this.loop = loop;
+            this.host = host;
+            this.exchange = exchange;
+            this.address = exchange.address;
+            this.secure = exchange.secure;
+            this.hostName = exchange.host;
+            this.port = exchange.port;
+            exchange.connection = this;
+        }
+
+        /**
+         * Begin connecting to the host.
+         */
+        private void connect() {
+            connectStarted = System.currentTimeMillis();
+            connectStartedNanos = System.nanoTime();
+            exchange.metrics.recordSince(RequestMetrics.Phase.QUEUE, exchange.queuedAt);
+
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+
+                if (secure) {
+                    engine = createEngine();
+                    SSLSession session = engine.getSession();
+                    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                    netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                    appIn = ByteBuffer.allocate(Math.max(BUFFER_SIZE, session.getApplicationBufferSize()));
+                    HttpConnectionPool.getInstance().recordConnection();
+                } else {
+                    appIn = ByteBuffer.allocate(BUFFER_SIZE);
+                }
+
+                boolean finished = channel.connect(address);
+                key = channel.register(loop.selector, finished ? 0 : SelectionKey.OP_CONNECT, this);
+
+                if (finished) {
+                    onConnected();
+                }
+            } catch (IOException e) {
+                fail(e, false);
+            }
+        }
+
+        private SSLEngine createEngine() throws IOException {
+            SSLContext context;
+            try {
+                context = SSLContext.getDefault();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("TLS is not available", e);
+            }
+
+            SSLEngine engine = context.createSSLEngine(hostName, port);
+            engine.setUseClientMode(true);
+            return engine;
+        }
+
+        /**
+         * Handle the readiness of the channel.
+         *
+         * @param key the selection key
+         */
+        private void handle(SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+
+                if (key.isConnectable()) {
+                    if (channel.finishConnect()) {
+                        onConnected();
+                    }
+                }
+
+                if (key.isValid() && key.isWritable()) {
+                    lastActivity = System.currentTimeMillis();
+                    if (handshaking) {
+                        handshake();
+                    } else {
+                        flush();
+                    }
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    onReadable();
+                }
+
+                if (key.isValid()) {
+                    updateInterest();
+                }
+            } catch (IOException e) {
+                fail(e, true);
+            } catch (RuntimeException e) {
+                fail(new IOException(e), false);
+            }
+        }
+
+        private void onConnected() throws IOException {
+            connected = true;
+            lastActivity = System.currentTimeMillis();
+
+            if (exchange != null) {
+                exchange.metrics.recordSince(RequestMetrics.Phase.CONNECT, connectStartedNanos);
+            }
+
+            if (engine != null) {
+                handshakeStarted = System.nanoTime();
+                engine.beginHandshake();
+                handshaking = true;
+                handshake();
+            } else {
+                start();
+            }
+
+            updateInterest();
+        }
+
+        /**
+         * Give this idle connection a new exchange.
+         *
+         * @param exchange the exchange
+         */
+        private void assign(NioExchange exchange) {
+            this.exchange = exchange;
+            exchange.connection = this;
+            exchange.metrics.recordSince(RequestMetrics.Phase.QUEUE, exchange.queuedAt);
+            exchange.metrics.setReused(true);
+            reused = true;
+
+            try {
+                start();
+                updateInterest();
+            } catch (IOException e) {
+                fail(e, true);
+            }
+        }
+
+        /**
+         * Send the request of the current exchange.
+         *
+         * @throws IOException on I/O error
+         */
+        private void start() throws IOException {
+            HttpConnectionPool.getInstance().recordRequest(secure);
+            lastActivity = System.currentTimeMillis();
+            exchange.sentAt = System.nanoTime();
+            pendingOut = exchange.requestData.duplicate();
+            state = STATE_STATUS;
+            line.setLength(0);
+            flush();
+        }
+
+        /**
+         * Set the operations to be notified of.
+         */
+        private void updateInterest() {
+            if (closed) {
+                return;
+            }
+
+            int ops;
+
+            if (!connected) {
+                ops = SelectionKey.OP_CONNECT;
+            } else {
+                ops = 0;
+                if ((pendingOut != null && pendingOut.hasRemaining()) ||
+                        (netOut != null && netOut.position() > 0)) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                if (exchange == null || !exchange.paused || handshaking) {
+                    ops |= SelectionKey.OP_READ;
+                }
+            }
+
+            key.interestOps(ops);
+        }
+
+        /**
+         * Write out as much pending data as the socket accepts.
+         *
+         * @throws IOException on I/O error
+         */
+        private void flush() throws IOException {
+            if (engine == null) {
+                if (pendingOut != null) {
+                    channel.write(pendingOut);
+                    if (!pendingOut.hasRemaining()) {
+                        pendingOut = null;
+                    }
+                }
+                return;
+            }
+
+            while (flushNet()) {
+                if (pendingOut == null || !pendingOut.hasRemaining()) {
+                    pendingOut = null;
+                    return;
+                }
+
+                SSLEngineResult result = engine.wrap(pendingOut, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new IOException("TLS session was closed");
+                }
+            }
+        }
+
+        /**
+         * Write encrypted data to the socket.
+         *
+         * @return true if all of it was written
+         * @throws IOException on I/O error
+         */
+        private boolean flushNet() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            boolean written = !netOut.hasRemaining();
+            netOut.compact();
+            return written;
+        }
+
+        /**
+         * Advance the TLS handshake as far as possible without blocking.
+         *
+         * @throws IOException on I/O error
+         */
+        private void handshake() throws IOException {
+            while (handshaking) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+
+                if (status == HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                } else if (status == HandshakeStatus.NEED_WRAP) {
+                    if (!flushNet()) {
+                        return;
+                    }
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new IOException("TLS session was closed during the handshake");
+                    }
+                } else if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+                    if (!flushNet()) {
+                        return;
+                    }
+                    HostnameChecker.verify(hostName, engine.getSession());
+                    handshaking = false;
+                    HttpConnectionPool.getInstance().recordHandshake();
+                    if (exchange != null) {
+                        exchange.metrics.recordSince(RequestMetrics.Phase.TLS, handshakeStarted);
+                    }
+                    if (exchange != null && state == STATE_IDLE) {
+                        start();
+                    }
+                } else {
+                    if (!flushNet()) {
+                        return;
+                    }
+                    netIn.flip();
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (eof) {
+                            throw new EOFException("Connection was closed during the TLS handshake");
+                        }
+                        growNetIn();
+                        return;
+                    } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new IOException("TLS session was closed during the handshake");
+                    } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 &&
+                            engine.getHandshakeStatus() == status) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void growNetIn() {
+            if (netIn.position() == netIn.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(netIn.capacity() * 2);
+                netIn.flip();
+                larger.put(netIn);
+                netIn = larger;
+            }
+        }
+
+        private void onReadable() throws IOException {
+            ByteBuffer target = engine != null ? netIn : appIn;
+            int len = channel.read(target);
+
+            if (len < 0) {
+                eof = true;
+            } else if (len > 0) {
+                lastActivity = System.currentTimeMillis();
+            }
+
+            if (handshaking) {
+                handshake();
+                if (handshaking) {
+                    if (eof) {
+                        throw new EOFException("Connection was closed during the TLS handshake");
+                    }
+                    return;
+                }
+            }
+
+            process();
+        }
+
+        /**
+         * Pick up reading where it stopped when the exchange was paused.
+         */
+        private void resumeReading() {
+            lastActivity = System.currentTimeMillis();
+
+            try {
+                process();
+                updateInterest();
+            } catch (IOException e) {
+                fail(e, true);
+            } catch (RuntimeException e) {
+                fail(new IOException(e), false);
+            }
+        }
+
+        /**
+         * Decrypt and parse what has been received.
+         *
+         * @throws IOException on I/O error
+         */
+        private void process() throws IOException {
+            while (!closed) {
+                boolean progress = false;
+
+                if (engine != null && !handshaking) {
+                    progress = unwrap();
+                }
+
+                progress |= parse();
+
+                if (!progress || exchange == null || exchange.paused) {
+                    break;
+                }
+            }
+
+            if (eof && !closed && (exchange == null || !exchange.paused)) {
+                onEof();
+            }
+        }
+
+        /**
+         * Decrypt received data into the application buffer.
+         *
+         * @return true if any data was decrypted
+         * @throws IOException on I/O error
+         */
+        private boolean unwrap() throws IOException {
+            boolean produced = false;
+
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+
+                if (result.bytesProduced() > 0) {
+                    produced = true;
+                }
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        growNetIn();
+                        return produced;
+                    case BUFFER_OVERFLOW:
+                        return produced;
+                    case CLOSED:
+                        eof = true;
+                        return produced;
+                }
+
+                HandshakeStatus status = result.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK || status == HandshakeStatus.NEED_WRAP) {
+                    // Renegotiation, or a reply to a post-handshake message
+                    handshaking = true;
+                    handshake();
+                    if (handshaking) {
+                        return produced;
+                    }
+                }
+
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    return produced;
+                }
+            }
+        }
+
+        /**
+         * Parse the decrypted data of the current response.
+         *
+         * @return true if any data was consumed
+         * @throws IOException on I/O error
+         */
+        private boolean parse() throws IOException {
+            appIn.flip();
+            int before = appIn.remaining();
+
+            try {
+                while (appIn.hasRemaining()) {
+                    if (exchange == null) {
+                        throw new IOException("Unexpected data from " + hostName);
+                    }
+
+                    if (exchange.paused && state >= STATE_LENGTH) {
+                        break;
+                    }
+
+                    String text;
+
+                    switch (state) {
+                        case STATE_STATUS:
+                            if ((text = readLine()) == null) {
+                                return false;
+                            }
+                            parseStatus(text);
+                            break;
+                        case STATE_HEADERS:
+                            if ((text = readLine()) == null) {
+                                return false;
+                            }
+                            if (text.isEmpty()) {
+                                onHead();
+                            } else {
+                                parseHeader(text);
+                            }
+                            break;
+                        case STATE_LENGTH:
+                            deliver((int) Math.min(remaining, appIn.remaining()));
+                            if (remaining == 0) {
+                                complete();
+                            }
+                            break;
+                        case STATE_CHUNK_SIZE:
+                            if ((text = readLine()) == null) {
+                                return false;
+                            }
+                            int end = text.indexOf(';');
+                            try {
+                                remaining = Long.parseLong((end >= 0 ? text.substring(0, end) : text).trim(), 16);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Invalid chunk size: " + text);
+                            }
+                            state = remaining == 0 ? STATE_TRAILER : STATE_CHUNK_DATA;
+                            break;
+                        case STATE_CHUNK_DATA:
+                            deliver((int) Math.min(remaining, appIn.remaining()));
+                            if (remaining == 0) {
+                                state = STATE_CHUNK_END;
+                            }
+                            break;
+                        case STATE_CHUNK_END:
+                            if (readLine() == null) {
+                                return false;
+                            }
+                            state = STATE_CHUNK_SIZE;
+                            break;
+                        case STATE_TRAILER:
+                            if ((text = readLine()) == null) {
+                                return false;
+                            }
+                            if (text.isEmpty()) {
+                                complete();
+                            }
+                            break;
+                        case STATE_UNTIL_CLOSE:
+                            deliver(appIn.remaining());
+                            break;
+                        default:
+                            throw new IOException("Unexpected data from " + hostName);
+                    }
+                }
+
+                return appIn.remaining() != before;
+            } finally {
+                appIn.compact();
+            }
+        }
+
+        private String readLine() throws IOException {
+            while (appIn.hasRemaining()) {
+                byte b = appIn.get();
+
+                if (b == '\n') {
+                    int len = line.length();
+                    if (len > 0 && line.charAt(len - 1) == '\r') {
+                        line.setLength(len - 1);
+                    }
+                    String text = line.toString();
+                    line.setLength(0);
+                    return text;
+                }
+
+                line.append((char) (b & 0xff));
+
+                if (line.length() > MAX_LINE_LENGTH) {
+                    throw new IOException("Response line is too long");
+                }
+            }
+
+            return null;
+        }
+
+        private void parseStatus(String text) throws IOException {
+            String[] parts = text.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid status line: " + text);
+            }
+
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + text);
+            }
+
+            http11 = !parts[0].equals("HTTP/1.0");
+            headers = new HashMap<String, String>();
+            exchange.received = true;
+            state = STATE_HEADERS;
+        }
+
+        private void parseHeader(String text) {
+            int index = text.indexOf(':');
+            if (index <= 0) {
+                return;
+            }
+
+            String name = text.substring(0, index).trim().toLowerCase();
+            String value = text.substring(index + 1).trim();
+            String existing = headers.get(name);
+            headers.put(name, existing != null ? existing + ", " + value : value);
+        }
+
+        /**
+         * Work out how the body is framed once the head has been received.
+         *
+         * @throws IOException on I/O error
+         */
+        private void onHead() throws IOException {
+            if (statusCode >= 100 && statusCode < 200) {
+                state = STATE_STATUS; // Skip interim responses
+                return;
+            }
+
+            String connection = headers.get("connection");
+            keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+
+            String transferEncoding = headers.get("transfer-encoding");
+            String contentLength = headers.get("content-length");
+            boolean hasBody = !exchange.method.equals("HEAD") && statusCode != 204 && statusCode != 304;
+
+            if (!hasBody) {
+                remaining = 0;
+                state = STATE_LENGTH;
+            } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                state = STATE_CHUNK_SIZE;
+            } else if (contentLength != null) {
+                try {
+                    remaining = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + contentLength);
+                }
+                state = STATE_LENGTH;
+            } else {
+                keepAlive = false;
+                state = STATE_UNTIL_CLOSE;
+            }
+
+            exchange.responseCode = statusCode;
+            exchange.responseHeaders = headers;
+            exchange.metrics.recordSince(RequestMetrics.Phase.FIRST_BYTE, exchange.sentAt);
+
+            String location = headers.get("location");
+            if ((statusCode == 301 || statusCode == 302 || statusCode == 303 || statusCode == 307) &&
+                    location != null && exchange.redirects < MAX_REDIRECTS &&
+                    (exchange.method.equals("GET") || exchange.method.equals("HEAD"))) {
+                URL target = new URL(exchange.url, location);
+                // Like HttpURLConnection, do not follow a change of protocol
+                if (target.getProtocol().equalsIgnoreCase(exchange.url.getProtocol())) {
+                    exchange.redirect = target;
+                }
+            }
+
+            if (exchange.redirect == null) {
+                exchange.handler.onResponse(exchange);
+            }
+
+            if (state == STATE_LENGTH && remaining == 0) {
+                complete();
+            }
+        }
+
+        /**
+         * Pass part of the body to the handler.
+         *
+         * @param len the number of bytes available in the buffer
+         * @throws IOException on I/O error
+         */
+        private void deliver(int len) throws IOException {
+            ByteBuffer data = appIn.slice();
+            data.limit(len);
+            appIn.position(appIn.position() + len);
+            remaining -= len;
+
+            if (exchange.redirect == null) {
+                exchange.handler.onData(data.asReadOnlyBuffer());
+            }
+        }
+
+        /**
+         * Finish the current exchange once its body has been received.
+         */
+        private void complete() {
+            NioExchange finished = exchange;
+            exchange = null;
+            finished.connection = null;
+            state = STATE_IDLE;
+
+            if (keepAlive && !eof && HttpConnectionPool.getInstance().isKeepAlive()) {
+                loop.release(this);
+            } else {
+                close();
+            }
+
+            if (finished.redirect != null) {
+                finished.followRedirect();
+            } else {
+                finished.succeed();
+            }
+        }
+
+        private void onEof() throws IOException {
+            if (exchange == null) {
+                close();
+            } else if (state == STATE_UNTIL_CLOSE) {
+                complete();
+            } else {
+                throw new EOFException("Connection was closed before the response was complete");
+            }
+        }
+
+        /**
+         * Abort the current exchange, if any, and close the connection.
+         *
+         * @param e the error
+         * @param retry true to retry the exchange if a reused connection failed
+         *              before a response arrived
+         */
+        private void fail(IOException e, boolean retry) {
+            NioExchange failed = exchange;
+            exchange = null;
+            close();
+
+            if (failed != null) {
+                failed.connection = null;
+
+                // The server may have closed an idle connection as it was reused
+                if (retry && reused && !failed.received && !failed.retried && !failed.done) {
+                    failed.retried = true;
+                    failed.queuedAt = System.nanoTime();
+                    failed.metrics.setRetries(failed.metrics.getRetries() + 1);
+                    loop.dispatch(failed);
+                } else {
+                    failed.fail(e);
+                }
+            }
+        }
+
+        private void checkTimeouts(long now) {
+            if (!connected) {
+                int timeout = exchange != null ? exchange.request.getConnectTimeout() : 0;
+                if (timeout > 0 && now - connectStarted > timeout) {
+                    fail(new SocketTimeoutException("Connect timed out"), false);
+                }
+            } else if (exchange != null) {
+                int timeout = exchange.request.getReadTimeout();
+                if (exchange.paused) {
+                    lastActivity = now;
+                } else if (timeout > 0 && now - lastActivity > timeout) {
+                    fail(new SocketTimeoutException("Read timed out"), false);
+                }
+            } else if (now - idleSince > idleTimeout) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            loop.closed(this);
+        }
+    }
+
+    /**
+     * Adapts an exchange to the blocking {@link Response} interface, buffering a
+     * limited amount of the body ahead of the reader.
+     */
+    private static class BlockingResponse implements Response, ResponseHandler {
+        private static final int HIGH_WATER_MARK = 1024 * 256;
+        private static final int LOW_WATER_MARK = 1024 * 64;
+
+        private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+        private final InputStream body = new BodyStream();
+        private Exchange exchange;
+        private byte[] current;
+        private int position;
+        private int buffered;
+        private boolean headReceived;
+        private boolean complete;
+        private IOException failure;
+
+        private synchronized void setExchange(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        /**
+         * Wait for the head of the response.
+         *
+         * @throws IOException on I/O error
+         */
+        private synchronized void awaitHead() throws IOException {
+            try {
+                while (!headReceived && failure == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                exchange.cancel();
+                throw new InterruptedIOException("Interrupted while waiting for a response");
+            }
+
+            if (!headReceived) {
+                throw failure;
+            }
+        }
+
+        @Override
+        public synchronized void onResponse(Exchange exchange) {
+            this.exchange = exchange;
+            headReceived = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onData(ByteBuffer data) {
+            byte[] chunk = new byte[data.remaining()];
+            data.get(chunk);
+            chunks.add(chunk);
+            buffered += chunk.length;
+
+            if (buffered >= HIGH_WATER_MARK) {
+                exchange.pause();
+            }
+
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            complete = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onFailure(IOException e) {
+            failure = e;
+            notifyAll();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return exchange.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return exchange.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close(boolean abort) {
+            HttpConnectionPool pool = HttpConnectionPool.getInstance();
+
+            if (!abort) {
+                try {
+                    abort = !BufferPool.getInstance().drain(body, pool.getDrainLimit());
+                } catch (IOException e) {
+                    abort = true;
+                }
+            }
+
+            if (abort) {
+                exchange.cancel();
+            }
+        }
+
+        private class BodyStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+
+                synchronized (BlockingResponse.this) {
+                    while (current == null) {
+                        if (!chunks.isEmpty()) {
+                            current = chunks.poll();
+                            position = 0;
+                        } else if (complete) {
+                            return -1;
+                        } else if (failure != null) {
+                            throw new IOException(failure.getMessage(), failure);
+                        } else {
+                            try {
+                                BlockingResponse.this.wait();
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                        }
+                    }
+
+                    int count = Math.min(len, current.length - position);
+                    System.arraycopy(current, position, b, off, count);
+                    position += count;
+                    buffered -= count;
+
+                    if (position == current.length) {
+                        current = null;
+                    }
+
+                    if (buffered < LOW_WATER_MARK) {
+                        exchange.resume();
+                    }
+
+                    return count;
+                }
+            }
+
+            @Override
+            public int available() {
+                synchronized (BlockingResponse.this) {
+                    return buffered;
+                }
+            }
+        }
+    }
+
+    private static boolean containsIgnoreCase(Map<String, String> headers, String name) {
+        for (String key : headers.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
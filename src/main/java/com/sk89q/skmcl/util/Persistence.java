@@ -20,7 +20,6 @@ package com.sk89q.skmcl.util;
 
 import lombok.NonNull;
 import lombok.extern.java.Log;
-import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -35,7 +34,6 @@ import java.util.logging.Level;
 @Log
 public final class Persistence {
 
-    private static final ObjectMapper mapper = new ObjectMapper();
     private static final WeakHashMap<Object, File> bound =
             new WeakHashMap<Object, File>();
 
@@ -99,7 +97,7 @@ public final class Persistence {
         V object;
 
         try {
-            object = mapper.readValue(file, cls);
+            object = Codecs.getReader(cls).readValue(file);
         } catch (IOException e) {
             if (!(e instanceof FileNotFoundException)) {
                 log.log(Level.INFO, "Failed to load " + file.getAbsolutePath() +
@@ -149,6 +147,6 @@ public final class Persistence {
      */
     public static void write(File file, Object object) throws IOException {
         file.getParentFile().mkdirs();
-        mapper.writeValue(file, object);
+        Codecs.getWriter().writeValue(file, object);
     }
 }
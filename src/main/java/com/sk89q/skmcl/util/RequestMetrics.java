@@ -0,0 +1,177 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.net.URL;
+
+/**
+ * The timings and outcome of a single {@link HttpRequest}.
+ *
+ * <p>Phases are filled in by the transport as far as it can tell them apart.
+ * {@link UrlConnectionTransport} cannot see inside {@link java.net.HttpURLConnection},
+ * so its connect phase also covers the DNS lookup and the TLS handshake. A phase
+ * that happened more than once, such as after a redirect, is summed.</p>
+ */
+public class RequestMetrics {
+
+    /**
+     * A part of the time taken by a request.
+     */
+    public enum Phase {
+        /** Waiting for a free connection to the host. */
+        QUEUE,
+        /** Resolving the host name. */
+        DNS,
+        /** Opening the TCP connection. */
+        CONNECT,
+        /** The TLS handshake. */
+        TLS,
+        /** From sending the request to receiving the head of the response. */
+        FIRST_BYTE,
+        /** Receiving the body of the response. */
+        TRANSFER
+    }
+
+    @Getter
+    private final String method;
+    @Getter
+    private final URL url;
+    @Getter @Setter
+    private volatile String caller;
+    @Getter @Setter
+    private volatile int retries;
+    @Getter @Setter
+    private volatile int responseCode = -1;
+    @Getter @Setter
+    private volatile long transferredBytes;
+    @Getter @Setter
+    private volatile long readBytes;
+    @Getter @Setter
+    private volatile long resumedBytes;
+    @Getter @Setter
+    private volatile boolean reused;
+    @Getter @Setter
+    private volatile boolean fromCache;
+    @Getter @Setter
+    private volatile boolean hedged;
+    @Getter @Setter
+    private volatile boolean failed;
+    @Getter @Setter
+    private volatile long totalNanos;
+    private final long[] phases = new long[Phase.values().length];
+
+    /**
+     * Create a new record.
+     *
+     * @param method the request method
+     * @param url the URL
+     */
+    public RequestMetrics(String method, URL url) {
+        this.method = method;
+        this.url = url;
+    }
+
+    /**
+     * Get the host that was requested.
+     *
+     * @return the host
+     */
+    public String getHost() {
+        return url.getHost();
+    }
+
+    /**
+     * Add time spent in a phase.
+     *
+     * @param phase the phase
+     * @param nanos the time in nanoseconds
+     */
+    public synchronized void record(Phase phase, long nanos) {
+        phases[phase.ordinal()] += Math.max(0, nanos);
+    }
+
+    /**
+     * Add the time spent in a phase that began at the given time and ends now.
+     *
+     * @param phase the phase
+     * @param startNanos the value of {@link System#nanoTime()} when the phase began
+     */
+    public void recordSince(Phase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Get the time spent in a phase.
+     *
+     * @param phase the phase
+     * @return the time in nanoseconds
+     */
+    public synchronized long getNanos(Phase phase) {
+        return phases[phase.ordinal()];
+    }
+
+    /**
+     * Get the time spent in a phase.
+     *
+     * @param phase the phase
+     * @return the time in milliseconds
+     */
+    public long getMillis(Phase phase) {
+        return getNanos(phase) / 1000000;
+    }
+
+    /**
+     * Get the time from the start of the request until it was finished.
+     *
+     * @return the time in milliseconds
+     */
+    public long getTotalMillis() {
+        return totalNanos / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(method).append(" ").append(url)
+                .append(" -> ").append(responseCode)
+                .append(failed ? " (failed)" : "")
+                .append(fromCache ? " (cached)" : "")
+                .append(hedged ? " (hedge)" : "")
+                .append(" in ").append(getTotalMillis()).append(" ms [");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) {
+                builder.append(", ");
+            }
+            builder.append(phase.name().toLowerCase()).append("=")
+                    .append(phases[phase.ordinal()] / 1000000).append(" ms");
+        }
+        builder.append("], ").append(transferredBytes).append(" bytes");
+        if (resumedBytes > 0) {
+            builder.append(", resumed from ").append(resumedBytes);
+        }
+        if (retries > 0) {
+            builder.append(", retry ").append(retries);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * Decides whether and when a failed transfer is tried again.
+ *
+ * <p>Delays grow exponentially with decorrelated jitter: each delay is drawn
+ * at random between the base delay and three times the previous delay, up to
+ * the maximum delay, so that transfers that failed together do not retry
+ * together. Retries are also limited by a budget that is shared by every
+ * transfer using the policy. Each first attempt adds a fraction of a retry to
+ * the budget and each retry takes a whole one, so when most requests fail,
+ * the policy stops adding load long before every transfer has used up its
+ * attempts.</p>
+ *
+ * <p>Requests refused by an open {@link CircuitBreaker} are never retried, and
+ * neither are requests that the server refused with a client error
+ * (see {@link UnexpectedResponseException#isPermanent()}).</p>
+ */
+public class RetryPolicy {
+
+    private final Random random = new Random();
+    @Getter
+    private final long baseDelay;
+    @Getter
+    private final long maxDelay;
+    @Getter
+    private final int maxAttempts;
+    @Getter
+    private final double budgetRatio;
+    private double budget;
+    @Getter
+    private int retries;
+    @Getter
+    private int denied;
+
+    /**
+     * Create a new policy.
+     *
+     * @param baseDelay the least delay before a retry, in milliseconds
+     * @param maxDelay the most delay before a retry, in milliseconds
+     * @param maxAttempts the most attempts per transfer, including the first
+     * @param budgetRatio the retries added to the budget by each first attempt
+     * @param minBudget the retries in the budget before any attempt
+     */
+    public RetryPolicy(long baseDelay, long maxDelay, int maxAttempts, double budgetRatio, int minBudget) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = Math.max(baseDelay, maxDelay);
+        this.maxAttempts = maxAttempts;
+        this.budgetRatio = budgetRatio;
+        this.budget = minBudget;
+    }
+
+    /**
+     * Record the first attempt of a transfer, which adds to the retry budget.
+     */
+    public synchronized void recordAttempt() {
+        budget += budgetRatio;
+    }
+
+    /**
+     * Decide whether a failed transfer should be tried again, taking a retry
+     * from the budget if so.
+     *
+     * @param attempts the number of attempts made so far
+     * @param error the error of the last attempt
+     * @return true to try again
+     */
+    public synchronized boolean shouldRetry(int attempts, Throwable error) {
+        if (attempts >= maxAttempts || !(error instanceof IOException) || error instanceof HostUnavailableException) {
+            return false;
+        }
+
+        if (error instanceof UnexpectedResponseException && ((UnexpectedResponseException) error).isPermanent()) {
+            return false; // The server would say the same again
+        }
+
+        if (error instanceof InterruptedIOException && !(error instanceof SocketTimeoutException)) {
+            return false; // The transfer was cancelled
+        }
+
+        if (budget < 1) {
+            denied++;
+            return false;
+        }
+
+        budget--;
+        retries++;
+        return true;
+    }
+
+    /**
+     * Get the delay before the next retry.
+     *
+     * @param previous the delay before the last retry, or 0 for the first retry
+     * @return the delay in milliseconds
+     */
+    public long getDelay(long previous) {
+        long high = Math.min(maxDelay, Math.max(baseDelay, previous) * 3);
+
+        synchronized (random) {
+            return baseDelay + (long) (random.nextDouble() * (high - baseDelay));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d retries, %d denied by the budget", retries, denied);
+    }
+
+}
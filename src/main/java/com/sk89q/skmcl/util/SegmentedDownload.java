@@ -0,0 +1,860 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Downloads a file over several connections at once, each fetching a different
+ * range of bytes into its place in a file of the full size.
+ *
+ * <p>The first request asks for the first segment only, which is the whole
+ * file if it is no larger than a segment. If the server sends the whole body
+ * instead, because it does not support ranges, the body is saved as in a normal
+ * resumable download. Otherwise, the rest of the file is split into segments
+ * that are fetched from a shared queue by two connections at first. While
+ * another connection raises the throughput by a tenth, one more is added, up
+ * to the maximum, and once one does not, it is dropped again. Segments are
+ * sent with an {@code If-Range} header, so that a file that changed on the
+ * server during the download is never stitched together.</p>
+ *
+ * <p>From the moment the first segment arrives, the length and validator of the
+ * file and the bytes saved of each segment are kept in a state file next to it,
+ * so a retry, or a download of the same file in a later session, only fetches
+ * the rest.</p>
+ *
+ * <p>If a checksum is given, the bytes that arrive in order from the start of
+ * the file are digested as they are written, and only the rest of the file is
+ * read back once every segment is done. A file that does not match is deleted
+ * and the next attempt starts over.</p>
+ */
+@Log
+abstract class SegmentedDownload {
+
+    private static final String STATE_SUFFIX = ".segments";
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final long MIN_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final double MIN_GAIN = 1.1;
+
+    private final File file;
+    private final ExecutorService executor;
+    private final long segmentSize;
+    private final int maxConnections;
+    private final String checksum;
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong transferred = new AtomicLong();
+    @Getter
+    private volatile long length = -1;
+    private String validator;
+    private BitSet done;
+    private long[] saved;
+    private int segmentCount;
+    private MessageDigest digest;
+    private long digested;
+    private volatile HttpRequest whole;
+    private long latencyNanos;
+    private int latencyCount;
+
+    // The connections of the current attempt
+    private final List<Future<?>> workers = new ArrayList<Future<?>>();
+    private int attempt;
+    private FileChannel channel;
+    private Queue<Integer> pending;
+    private int connections;
+    private int targetConnections;
+    private int peakConnections;
+    private boolean probing;
+    private long stepStart;
+    private long stepBytes;
+    private double stepRate;
+
+    /**
+     * Create a new download.
+     *
+     * @param file the file to save to
+     * @param executor the executor to run the extra connections on
+     * @param segmentSize the size of each segment
+     * @param maxConnections the maximum number of connections
+     * @param checksum the MD5 or SHA-1 checksum of the file in hex, or null to not check
+     */
+    SegmentedDownload(File file, ExecutorService executor, long segmentSize, int maxConnections,
+                      String checksum) {
+        this.file = file;
+        this.executor = executor;
+        this.segmentSize = segmentSize;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.checksum = checksum;
+    }
+
+    /**
+     * Create a new request for the file.
+     *
+     * @return the request
+     */
+    protected abstract HttpRequest createRequest();
+
+    /**
+     * Get the progress of the download.
+     *
+     * @return the progress between 0 and 1, or -1 if the length is not known yet
+     */
+    public double getProgress() {
+        long total = getTotalBytes();
+        return total > 0 ? getReceivedBytes() / (double) total : -1;
+    }
+
+    /**
+     * Get the length of the file, including while it is downloaded whole
+     * because it could not be downloaded in segments.
+     *
+     * @return the number of bytes, or -1 if it is not known yet
+     */
+    public long getTotalBytes() {
+        HttpRequest whole = this.whole;
+        return whole != null ? whole.getTotalLength() : length;
+    }
+
+    /**
+     * Get the number of bytes of the file that are saved.
+     *
+     * @return the number of bytes
+     */
+    public long getReceivedBytes() {
+        HttpRequest whole = this.whole;
+        return whole != null ? whole.getReceivedBytes() : received.get();
+    }
+
+    /**
+     * Get the number of bytes received over every attempt, which never goes
+     * down, unlike {@link #getReceivedBytes()}.
+     *
+     * @return the number of bytes
+     */
+    public long getTransferredBytes() {
+        HttpRequest whole = this.whole;
+        return transferred.get() + (whole != null ? whole.getTransferredBytes() : 0);
+    }
+
+    /**
+     * Get the average time to the first byte of the responses to the requests
+     * of the current or last attempt.
+     *
+     * @return the time in nanoseconds, or -1 if no response has arrived yet
+     */
+    public synchronized long getLatency() {
+        return latencyCount > 0 ? latencyNanos / latencyCount : -1;
+    }
+
+    /**
+     * Get the most connections that were open at once during the current or
+     * last attempt.
+     *
+     * @return the number of connections
+     */
+    public synchronized int getPeakConnections() {
+        return peakConnections;
+    }
+
+    /**
+     * Make an attempt at downloading the file.
+     *
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    public void download() throws IOException, InterruptedException {
+        synchronized (this) {
+            latencyNanos = 0;
+            latencyCount = 0;
+            peakConnections = 1;
+        }
+
+        boolean fresh = length < 0 && !load();
+        HttpRequest first = null;
+
+        if (fresh) {
+            if (HttpRequest.canResume(file)) {
+                // An earlier attempt was saving the whole body, so carry on with that
+                saveWhole(execute(createRequest().resumable(file)).expectResponseCode(200));
+                return;
+            }
+
+            first = execute(createRequest()
+                    .resumable(file)
+                    .header("Range", "bytes=0-" + (segmentSize - 1)));
+
+            if (!start(first)) {
+                return;
+            }
+        }
+
+        RandomAccessFile raf;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            if (first != null) {
+                first.close();
+            }
+            throw e;
+        }
+
+        try {
+            if (fresh) {
+                raf.setLength(length);
+                persist();
+            }
+
+            synchronized (this) {
+                channel = raf.getChannel();
+                pending = new ConcurrentLinkedQueue<Integer>();
+                received.set(0);
+                for (int i = 0; i < segmentCount; i++) {
+                    received.addAndGet(done.get(i) ? getEnd(i) - getStart(i) : saved[i]);
+                    if (!done.get(i) && (!fresh || i > 0)) {
+                        pending.add(i);
+                    }
+                }
+
+                // This thread is the first connection
+                attempt++;
+                workers.clear();
+                connections = 1;
+                targetConnections = Math.min(INITIAL_CONNECTIONS, maxConnections);
+                probing = targetConnections < maxConnections;
+                stepStart = System.nanoTime();
+                stepBytes = transferred.get();
+                stepRate = -1;
+                addWorkers();
+            }
+
+            try {
+                if (fresh) {
+                    save(first, channel, 0);
+                }
+                new Worker(channel, pending).call();
+                awaitWorkers();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof InterruptedException) {
+                    throw (InterruptedException) cause;
+                } else {
+                    throw new IOException(cause);
+                }
+            } finally {
+                stopWorkers();
+            }
+
+            synchronized (this) {
+                if (done.cardinality() != segmentCount) {
+                    throw new IOException("Not all segments of " + file + " were downloaded");
+                }
+            }
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+            persist();
+        }
+
+        verify();
+        getStateFile(file).delete();
+    }
+
+    /**
+     * Check the checksum of the finished file, reading back the part that
+     * could not be digested as it arrived.
+     *
+     * @throws IOException on I/O error, or if the checksum does not match
+     */
+    private void verify() throws IOException {
+        MessageDigest digest;
+        long digested;
+
+        synchronized (this) {
+            digest = this.digest;
+            digested = this.digested;
+        }
+
+        if (digest == null) {
+            return;
+        }
+
+        if (digested < length) {
+            log.log(Level.FINE, "Reading back {0} of {1} bytes of {2} to check its checksum",
+                    new Object[] { length - digested, length, file });
+            Checksums.update(digest, file, digested, length - digested);
+        }
+
+        try {
+            Checksums.verify(digest, checksum, file);
+        } catch (ChecksumMismatchException e) {
+            reset();
+            file.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Work out how to carry on from the response to the first request.
+     *
+     * @param first the executed request for the first segment
+     * @return true if the rest of the file is to be downloaded in segments, or
+     *         false if the whole file was saved already
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private boolean start(HttpRequest first) throws IOException, InterruptedException {
+        if (first.getResponseCode() == 200) {
+            log.log(Level.FINE, "{0} does not support ranges, so it will be downloaded whole",
+                    first.getUrl().getHost());
+            saveWhole(first);
+            return false;
+        }
+
+        first.expectResponseCode(206);
+
+        long total = getTotalLength(first.getResponseHeader("Content-Range"));
+        String validator = HttpRequest.getValidator(
+                first.getResponseHeader("ETag"), first.getResponseHeader("Last-Modified"));
+
+        if (total < 0 || (validator == null && total > segmentSize)) {
+            // Without a validator, ranges fetched later could be of a different file
+            first.close();
+            saveWhole(execute(createRequest().resumable(file)).expectResponseCode(200));
+            return false;
+        }
+
+        // Anything left by a download of the whole body is written over
+        HttpRequest.discardPartial(file);
+
+        synchronized (this) {
+            this.validator = validator;
+            this.length = total;
+            this.segmentCount = (int) ((total + segmentSize - 1) / segmentSize);
+            this.done = new BitSet(segmentCount);
+            this.saved = new long[segmentCount];
+            this.digest = checksum != null ? Checksums.createDigest(checksum) : null;
+            this.digested = 0;
+        }
+
+        if (segmentCount > 1) {
+            log.log(Level.INFO, "Downloading {0} in {1} segments over up to {2} connections",
+                    new Object[] { first.getUrl(), segmentCount, Math.min(maxConnections, segmentCount) });
+        }
+
+        return true;
+    }
+
+    /**
+     * Carry on from the state file left by an earlier download of the file,
+     * if there is one that matches the file.
+     *
+     * @return true if the download carries on from the state file
+     */
+    private boolean load() {
+        File stateFile = getStateFile(file);
+        if (!stateFile.exists()) {
+            return false;
+        }
+
+        State state;
+        try {
+            state = Codecs.getReader(State.class).readValue(stateFile);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to read " + stateFile, e);
+            stateFile.delete();
+            return false;
+        }
+
+        long total = state.getLength();
+        long[] saved = state.getSaved();
+        int count = (int) ((total + segmentSize - 1) / segmentSize);
+
+        if (state.getValidator() == null || state.getSegmentSize() != segmentSize || total <= 0 ||
+                file.length() != total || saved == null || saved.length != count) {
+            stateFile.delete();
+            return false;
+        }
+
+        synchronized (this) {
+            this.validator = state.getValidator();
+            this.length = total;
+            this.segmentCount = count;
+            this.done = new BitSet(count);
+            this.saved = saved;
+            for (int i = 0; i < count; i++) {
+                saved[i] = Math.max(0, Math.min(saved[i], getEnd(i) - getStart(i)));
+                if (saved[i] == getEnd(i) - getStart(i)) {
+                    done.set(i);
+                }
+            }
+            this.digest = checksum != null ? Checksums.createDigest(checksum) : null;
+            this.digested = 0;
+        }
+
+        log.log(Level.INFO, "Resuming {0} from {1} segments of {2}",
+                new Object[] { file, done.cardinality(), count });
+        return true;
+    }
+
+    /**
+     * Write the progress made to the state file, so that a later download of
+     * the file can carry on from it.
+     */
+    private synchronized void persist() {
+        if (saved == null || validator == null) {
+            return;
+        }
+
+        State state = new State();
+        state.setValidator(validator);
+        state.setLength(length);
+        state.setSegmentSize(segmentSize);
+        state.setSaved(saved);
+
+        try {
+            Codecs.getWriter().writeValue(getStateFile(file), state);
+        } catch (IOException e) {
+            log.log(Level.FINE, "Failed to save the progress of " + file, e);
+        }
+    }
+
+    /**
+     * Save the whole body of a response to the file.
+     *
+     * @param request the executed request
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void saveWhole(HttpRequest request) throws IOException, InterruptedException {
+        whole = request;
+
+        try {
+            request.saveContent(file);
+        } finally {
+            whole = null;
+            transferred.addAndGet(request.getTransferredBytes());
+        }
+    }
+
+    /**
+     * Execute a request and note how long the response took to arrive.
+     *
+     * @param request the request
+     * @return the request
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private HttpRequest execute(HttpRequest request) throws IOException, InterruptedException {
+        request.execute();
+
+        long latency = request.getMetrics().getNanos(RequestMetrics.Phase.FIRST_BYTE);
+        if (latency > 0) {
+            synchronized (this) {
+                latencyNanos += latency;
+                latencyCount++;
+            }
+        }
+
+        return request;
+    }
+
+    /**
+     * Fetch one segment.
+     *
+     * @param channel the channel to write to
+     * @param index the index of the segment
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void fetch(FileChannel channel, int index) throws IOException, InterruptedException {
+        long start;
+        long end;
+        String validator;
+
+        synchronized (this) {
+            if (saved == null) {
+                throw new IOException("The download of " + file + " was restarted");
+            }
+            validator = this.validator;
+            if (validator == null) {
+                // Only a file of one segment gets here without a validator, so start it over
+                received.addAndGet(-saved[index]);
+                saved[index] = 0;
+                if (digest != null) {
+                    digest.reset();
+                    digested = 0;
+                }
+            }
+            start = getStart(index) + saved[index];
+            end = getEnd(index);
+        }
+
+        HttpRequest request = createRequest()
+                .compression(false)
+                .header("Range", "bytes=" + start + "-" + (end - 1));
+
+        if (validator != null) {
+            request.header("If-Range", validator);
+        }
+
+        execute(request);
+
+        if (request.getResponseCode() == 200) {
+            request.close();
+            reset();
+            throw new IOException(request.getUrl() + " changed on the server during the download");
+        }
+
+        request.expectResponseCode(206);
+
+        String contentRange = request.getResponseHeader("Content-Range");
+        if (contentRange == null || !contentRange.trim().startsWith("bytes " + start + "-" + (end - 1) + "/")) {
+            request.close();
+            throw new IOException("Asked for bytes " + start + "-" + (end - 1) + ", but got " + contentRange);
+        }
+
+        save(request, channel, index);
+    }
+
+    /**
+     * Write the body of a response for a segment into place.
+     *
+     * @param request the executed request
+     * @param channel the channel to write to
+     * @param index the index of the segment
+     * @throws IOException on I/O error
+     * @throws InterruptedException on interruption
+     */
+    private void save(HttpRequest request, FileChannel channel, int index)
+            throws IOException, InterruptedException {
+        long start;
+        long expected;
+        int attempt;
+
+        synchronized (this) {
+            if (saved == null) {
+                request.close();
+                throw new IOException("The download of " + file + " was restarted");
+            }
+            start = getStart(index) + saved[index];
+            expected = getEnd(index) - start;
+            attempt = this.attempt;
+        }
+
+        SegmentOutputStream out = new SegmentOutputStream(channel, start, expected);
+
+        try {
+            request.saveContent(out);
+        } finally {
+            // Keep what was written, so that a retry carries on from there, unless
+            // a cancelled connection only gets here once the retry has started
+            synchronized (this) {
+                if (saved != null && attempt == this.attempt) {
+                    saved[index] += out.written;
+                    persist();
+                }
+            }
+        }
+
+        if (out.written != expected) {
+            throw new IOException("Expected " + expected + " bytes for segment " + index +
+                    " of " + request.getUrl() + ", but got " + out.written);
+        }
+
+        synchronized (this) {
+            if (done != null) {
+                done.set(index);
+                persist();
+            }
+        }
+    }
+
+    /**
+     * Start connections until there are as many as wanted, or until every
+     * segment has one.
+     */
+    private synchronized void addWorkers() {
+        while (connections < targetConnections && !pending.isEmpty()) {
+            workers.add(executor.submit(new Worker(channel, pending)));
+            connections++;
+        }
+
+        peakConnections = Math.max(peakConnections, connections);
+    }
+
+    /**
+     * Wait for every connection started for this attempt, including those
+     * started while waiting.
+     *
+     * @throws ExecutionException if a connection failed
+     * @throws InterruptedException on interruption
+     */
+    private void awaitWorkers() throws ExecutionException, InterruptedException {
+        for (int i = 0; ; i++) {
+            Future<?> future;
+            synchronized (this) {
+                if (i >= workers.size()) {
+                    return;
+                }
+                future = workers.get(i);
+            }
+            future.get();
+        }
+    }
+
+    /**
+     * Stop every connection of this attempt.
+     */
+    private void stopWorkers() {
+        List<Future<?>> futures;
+
+        synchronized (this) {
+            probing = false;
+            pending.clear();
+            futures = new ArrayList<Future<?>>(workers);
+        }
+
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Compare the throughput since the last change to the number of
+     * connections with the throughput before it, and add another connection
+     * if the last one paid off.
+     */
+    private void step() {
+        long now = System.nanoTime();
+
+        synchronized (this) {
+            long latency = getLatency();
+            if (!probing || now - stepStart < Math.max(MIN_STEP_NANOS, latency * 4)) {
+                return;
+            }
+
+            double rate = (transferred.get() - stepBytes) / (double) (now - stepStart);
+
+            if (stepRate >= 0 && rate < stepRate * MIN_GAIN) {
+                // The last connection did not pay off, so one finishes after its segment
+                probing = false;
+                targetConnections--;
+                log.log(Level.FINE, "Using {0} connections for {1}", new Object[] { targetConnections, file });
+                return;
+            }
+
+            if (connections < targetConnections || pending.isEmpty()) {
+                probing = false;
+                return;
+            }
+
+            stepRate = rate;
+            stepStart = now;
+            stepBytes = transferred.get();
+            targetConnections++;
+            probing = targetConnections < maxConnections;
+            addWorkers();
+        }
+    }
+
+    /**
+     * Check whether the connection of the calling worker is one too many.
+     *
+     * @return true if the worker is to stop
+     */
+    private synchronized boolean retire() {
+        if (connections > targetConnections) {
+            connections--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget the progress made, so that the next attempt starts over.
+     */
+    private synchronized void reset() {
+        length = -1;
+        validator = null;
+        done = null;
+        saved = null;
+        segmentCount = 0;
+        digest = null;
+        digested = 0;
+        getStateFile(file).delete();
+    }
+
+    private long getStart(int index) {
+        return index * segmentSize;
+    }
+
+    private long getEnd(int index) {
+        return Math.min(length, (index + 1) * segmentSize);
+    }
+
+    /**
+     * Check whether a partial download of a file in segments was left that
+     * can be carried on from.
+     *
+     * @param file the file
+     * @return true if there is a partial download
+     */
+    public static boolean canResume(File file) {
+        return file.length() > 0 && getStateFile(file).exists();
+    }
+
+    /**
+     * Delete a partial download of a file in segments and its state.
+     *
+     * @param file the file
+     */
+    public static void discardPartial(File file) {
+        file.delete();
+        getStateFile(file).delete();
+    }
+
+    private static File getStateFile(File file) {
+        return new File(file.getParentFile(), file.getName() + STATE_SUFFIX);
+    }
+
+    /**
+     * Get the full length from a Content-Range header, such as
+     * {@code bytes 0-99/1000}.
+     *
+     * @param contentRange the header, or null
+     * @return the length, or -1 if it is not known
+     */
+    private static long getTotalLength(String contentRange) {
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                try {
+                    return Long.parseLong(contentRange.substring(slash + 1).trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Fetches segments from a shared queue until it is empty, or until there
+     * are more connections than wanted.
+     */
+    private class Worker implements Callable<Void> {
+        private final FileChannel channel;
+        private final Queue<Integer> pending;
+
+        private Worker(FileChannel channel, Queue<Integer> pending) {
+            this.channel = channel;
+            this.pending = pending;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            Integer index;
+            while (!retire() && (index = pending.poll()) != null) {
+                fetch(channel, index);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes to a region of a file.
+     */
+    private class SegmentOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final long start;
+        private final long limit;
+        private long written;
+
+        private SegmentOutputStream(FileChannel channel, long start, long limit) {
+            this.channel = channel;
+            this.start = start;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (written + len > limit) {
+                throw new IOException("The server sent more than the " + limit + " bytes asked for");
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, start + written + (len - buffer.remaining()));
+            }
+
+            synchronized (SegmentedDownload.this) {
+                // Digest the bytes that carry on from those digested so far
+                if (digest != null && start + written == digested) {
+                    digest.update(b, off, len);
+                    digested += len;
+                }
+            }
+
+            written += len;
+            received.addAndGet(len);
+            transferred.addAndGet(len);
+            step();
+        }
+    }
+
+    /**
+     * The progress of a download in segments, as kept in its state file.
+     */
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class State {
+        private String validator;
+        private long length;
+        private long segmentSize;
+        private long[] saved;
+    }
+
+}
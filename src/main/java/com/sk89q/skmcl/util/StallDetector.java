@@ -0,0 +1,98 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+import java.util.LinkedList;
+
+/**
+ * Detects a transfer whose throughput over a sliding window of time has fallen
+ * below a minimum.
+ *
+ * <p>A transfer is never considered stalled before a full window has passed
+ * since it started.</p>
+ */
+public class StallDetector {
+
+    private static final int SAMPLES_PER_WINDOW = 10;
+
+    @Getter
+    private final long minBytesPerSecond;
+    @Getter
+    private final long windowMillis;
+    private final LinkedList<long[]> samples = new LinkedList<long[]>();
+    private long startTime = -1;
+    private long total;
+
+    /**
+     * Create a new detector.
+     *
+     * @param minBytesPerSecond the minimum throughput
+     * @param windowMillis the length of the window in milliseconds
+     */
+    public StallDetector(long minBytesPerSecond, long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("windowMillis must be positive");
+        }
+
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Record that some bytes were transferred, and check the throughput.
+     *
+     * @param bytes the number of bytes just transferred
+     * @throws TransferStalledException thrown if the transfer has stalled
+     */
+    public void update(long bytes) throws TransferStalledException {
+        long now = System.currentTimeMillis();
+
+        if (startTime < 0) {
+            startTime = now;
+            samples.add(new long[] { now, 0 });
+        }
+
+        total += bytes;
+
+        long[] last = samples.getLast();
+        if (now - last[0] >= windowMillis / SAMPLES_PER_WINDOW) {
+            samples.add(new long[] { now, total });
+        }
+
+        // Keep the newest sample that is at least a window old as the baseline
+        while (samples.size() > 1 && now - samples.get(1)[0] >= windowMillis) {
+            samples.removeFirst();
+        }
+
+        if (now - startTime >= windowMillis) {
+            long[] first = samples.getFirst();
+            long elapsed = Math.max(1, now - first[0]);
+            long rate = (total - first[1]) * 1000 / elapsed;
+
+            if (rate < minBytesPerSecond) {
+                throw new TransferStalledException(String.format(
+                        "Transfer stalled at %d bytes/s (minimum is %d bytes/s over %d ms)",
+                        rate, minBytesPerSecond, windowMillis));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server answered a request with a response code that was
+ * not expected.
+ */
+public class UnexpectedResponseException extends IOException {
+
+    private static final long serialVersionUID = -6549282874551460710L;
+
+    @Getter
+    private final int responseCode;
+
+    public UnexpectedResponseException(int responseCode) {
+        super("Did not get expected response code, got " + responseCode);
+        this.responseCode = responseCode;
+    }
+
+    /**
+     * Get whether the server refused the request for good, as with a missing
+     * file, so that asking again would get the same answer.
+     *
+     * @return true if the request should not be retried
+     */
+    public boolean isPermanent() {
+        return responseCode >= 400 && responseCode < 500 && responseCode != 408 && responseCode != 429;
+    }
+
+}
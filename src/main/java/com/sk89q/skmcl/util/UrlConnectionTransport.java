@@ -0,0 +1,130 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A transport that uses {@link HttpURLConnection}, sharing connections through
+ * the {@link HttpConnectionPool}.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+    @Override
+    public Response open(HttpRequest request) throws IOException {
+        HttpConnectionPool pool = HttpConnectionPool.getInstance();
+        RequestMetrics metrics = request.getMetrics();
+        long started = System.nanoTime();
+        Semaphore permit = pool.acquire(request.getUrl());
+        metrics.recordSince(RequestMetrics.Phase.QUEUE, started);
+        HttpURLConnection conn = null;
+        boolean successful = false;
+
+        try {
+            conn = (HttpURLConnection) request.getUrl().openConnection();
+            pool.configure(conn);
+
+            if (request.getBody() != null) {
+                conn.setDoInput(true);
+            }
+
+            for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+                conn.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+
+            conn.setRequestMethod(request.getMethod());
+            conn.setUseCaches(false);
+            conn.setDoOutput(true);
+            conn.setConnectTimeout(request.getConnectTimeout());
+            conn.setReadTimeout(request.getReadTimeout());
+
+            started = System.nanoTime();
+            conn.connect();
+            metrics.recordSince(RequestMetrics.Phase.CONNECT, started);
+            started = System.nanoTime();
+
+            if (request.getBody() != null) {
+                DataOutputStream out = new DataOutputStream(conn.getOutputStream());
+                out.write(request.getBody());
+                out.flush();
+                out.close();
+            }
+
+            int responseCode = conn.getResponseCode();
+            metrics.recordSince(RequestMetrics.Phase.FIRST_BYTE, started);
+
+            InputStream stream = responseCode < 400 ?
+                    conn.getInputStream() : conn.getErrorStream();
+
+            successful = true;
+            return new UrlConnectionResponse(conn, stream, permit);
+        } finally {
+            if (!successful) {
+                if (conn != null) {
+                    pool.recycle(conn, null);
+                }
+                pool.release(permit);
+            }
+        }
+    }
+
+    private static class UrlConnectionResponse implements Response {
+        private final HttpURLConnection conn;
+        private final InputStream stream;
+        private final Semaphore permit;
+
+        private UrlConnectionResponse(HttpURLConnection conn, InputStream stream, Semaphore permit) {
+            this.conn = conn;
+            this.stream = stream;
+            this.permit = permit;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return conn.getResponseCode();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return stream;
+        }
+
+        @Override
+        public void close(boolean abort) {
+            HttpConnectionPool pool = HttpConnectionPool.getInstance();
+
+            try {
+                pool.recycle(conn, abort ? null : stream);
+            } finally {
+                pool.release(permit);
+            }
+        }
+    }
+
+}
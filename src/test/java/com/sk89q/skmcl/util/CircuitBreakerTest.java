@@ -0,0 +1,55 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.skmcl.util;
+
+import org.junit.Test;
+
+import java.net.ConnectException;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static Throwable failure(String url) throws Exception {
+        return new ExecutionException(new DownloadFailedException(new URL(url), new ConnectException()));
+    }
+
+    @Test
+    public void testOnlyBlamesHostOfFailedRequest() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.forHost("down.breaker.test");
+        breaker.setFailureThreshold(1);
+        breaker.setFailurePeriod(0);
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+
+        assertTrue(CircuitBreaker.isHostUnavailable(failure("http://down.breaker.test/lib.jar")));
+        assertFalse(CircuitBreaker.isHostUnavailable(failure("http://up.breaker.test/lib.jar")));
+        assertFalse(CircuitBreaker.isHostUnavailable(new ConnectException()));
+    }
+
+    @Test
+    public void testRecognizesRefusedRequest() throws Exception {
+        Throwable refused = new HostUnavailableException("other.breaker.test", "Not contacting other.breaker.test");
+        assertTrue(CircuitBreaker.isHostUnavailable(new ExecutionException(refused)));
+    }
+
+}
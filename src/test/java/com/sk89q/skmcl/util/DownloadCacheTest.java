@@ -0,0 +1,82 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.skmcl.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class DownloadCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private DownloadCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new DownloadCache(temp.newFolder("cache"), 1024 * 1024);
+    }
+
+    private File write(String name, String contents) throws Exception {
+        File file = temp.newFile(name);
+        FileUtils.writeStringToFile(file, contents, "UTF-8");
+        return file;
+    }
+
+    @Test
+    public void testStoresByChecksum() throws Exception {
+        String md5 = DigestUtils.md5Hex("game");
+        assertTrue(cache.put("\"" + md5 + "\"", write("game.jar", "game")));
+
+        File stored = cache.get(md5.toUpperCase());
+        assertNotNull(stored);
+        assertEquals("game", FileUtils.readFileToString(stored, "UTF-8"));
+    }
+
+    @Test
+    public void testRejectsFilesWithoutChecksum() throws Exception {
+        File file = write("game.jar", "game");
+        assertFalse(cache.put("http://example.com/game.jar", file));
+        assertTrue(file.exists());
+
+        String md5 = DigestUtils.md5Hex("other");
+        assertFalse(cache.put(md5, file));
+        assertNull(cache.get(md5));
+    }
+
+    @Test
+    public void testRemovesCorruptedFiles() throws Exception {
+        String md5 = DigestUtils.md5Hex("game");
+        cache.put(md5, write("game.jar", "game"));
+        FileUtils.writeStringToFile(cache.get(md5), "gane", "UTF-8");
+
+        assertNull(cache.get(md5));
+        assertNull(cache.get(md5));
+    }
+
+}
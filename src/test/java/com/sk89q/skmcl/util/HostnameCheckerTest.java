@@ -0,0 +1,43 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.skmcl.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HostnameCheckerTest {
+
+    @Test
+    public void testMatchesExactName() {
+        assertTrue(HostnameChecker.matches("libraries.minecraft.net", "Libraries.Minecraft.net"));
+        assertTrue(HostnameChecker.matches("libraries.minecraft.net.", "libraries.minecraft.net"));
+        assertFalse(HostnameChecker.matches("evil.net", "libraries.minecraft.net"));
+    }
+
+    @Test
+    public void testMatchesOneLabelOfWildcard() {
+        assertTrue(HostnameChecker.matches("s3.amazonaws.com", "*.amazonaws.com"));
+        assertFalse(HostnameChecker.matches("a.s3.amazonaws.com", "*.amazonaws.com"));
+        assertFalse(HostnameChecker.matches("amazonaws.com", "*.amazonaws.com"));
+        assertFalse(HostnameChecker.matches("amazonaws.com", "*.com"));
+    }
+
+}
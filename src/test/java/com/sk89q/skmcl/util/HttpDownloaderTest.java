@@ -0,0 +1,305 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.sk89q.skmcl.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class HttpDownloaderTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private HttpTransport defaultTransport;
+    private FakeHttpTransport transport;
+    private ExecutorService executor;
+
+    @BeforeClass
+    public static void loadLocale() {
+        SharedLocale.loadBundle("lang.Launcher", Locale.getDefault());
+    }
+
+    @Before
+    public void setUp() {
+        defaultTransport = HttpRequest.getDefaultTransport();
+        transport = new FakeHttpTransport(1);
+        HttpRequest.setDefaultTransport(transport);
+        executor = Executors.newFixedThreadPool(HttpDownloader.getDefaultMaxConcurrency());
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        HttpRequest.setDefaultTransport(defaultTransport);
+    }
+
+    /**
+     * Serve files of random contents, with every tenth one larger than a
+     * segment.
+     *
+     * @param count the number of files
+     * @param size the size of most files
+     * @return the bodies by URL
+     */
+    private Map<URL, byte[]> serve(int count, int size) throws Exception {
+        Map<URL, byte[]> files = new LinkedHashMap<URL, byte[]>();
+        Random random = new Random(count);
+
+        for (int i = 0; i < count; i++) {
+            byte[] body = new byte[i % 10 == 0 ? size * 10 : size];
+            random.nextBytes(body);
+            URL url = new URL("http://files.example.com/file" + i);
+            transport.serve(url.toString(), body).etag("\"" + DigestUtils.md5Hex(body) + "\"");
+            files.put(url, body);
+        }
+
+        return files;
+    }
+
+    /**
+     * Submit the given files and check that each one is downloaded intact.
+     *
+     * @param downloader the downloader
+     * @param files the bodies by URL
+     * @param checksum true to submit the MD5 checksum of each file
+     */
+    private void download(HttpDownloader downloader, Map<URL, byte[]> files, boolean checksum) throws Exception {
+        download(downloader, temp.newFolder(), files, checksum);
+    }
+
+    /**
+     * Submit the given files and check that each one is downloaded intact.
+     *
+     * @param downloader the downloader
+     * @param dir the directory to download to
+     * @param files the bodies by URL
+     * @param checksum true to submit the MD5 checksum of each file
+     */
+    private void download(HttpDownloader downloader, File dir, Map<URL, byte[]> files, boolean checksum)
+            throws Exception {
+        Map<File, byte[]> destinations = new LinkedHashMap<File, byte[]>();
+
+        for (Map.Entry<URL, byte[]> entry : files.entrySet()) {
+            byte[] body = entry.getValue();
+            File file = downloader.submit(dir, entry.getKey(), null,
+                    checksum ? DigestUtils.md5Hex(body) : null, body.length);
+            destinations.put(file, body);
+        }
+
+        downloader.call();
+
+        for (Map.Entry<File, byte[]> entry : destinations.entrySet()) {
+            assertArrayEquals(entry.getValue(), FileUtils.readFileToByteArray(entry.getKey()));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testDownloadsEveryFile() throws Exception {
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setSegmentSize(16 * 1024);
+
+        Map<URL, byte[]> files = serve(50, 4 * 1024);
+        download(downloader, files, true);
+        assertEquals(0, transport.getFailureCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testRetriesFailedRequests() throws Exception {
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setRetryPolicy(new RetryPolicy(10, 50, 5, 1, 10));
+
+        Map<URL, byte[]> files = serve(20, 4 * 1024);
+        for (URL url : files.keySet()) {
+            transport.serve(url.toString(), files.get(url)).failures(1);
+        }
+
+        download(downloader, files, false);
+        assertEquals(40, transport.getRequestCount());
+    }
+
+    @Test(timeout = 60000)
+    public void testHedgesSlowTransfers() throws Exception {
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setHedgePolicy(new HedgePolicy(0.1, 50));
+
+        transport.setBandwidth(64 * 1024);
+        transport.setSlowRate(0.05);
+
+        download(downloader, serve(200, 4 * 1024), true);
+        assertTrue(downloader.getHedgePolicy().getHedges() > 0);
+        assertTrue(downloader.getHedgePolicy().getWins() > 0);
+    }
+
+    @Test(timeout = 60000)
+    public void testSegmentsLargeFileOfUnknownSize() throws Exception {
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setSegmentSize(64 * 1024);
+
+        byte[] body = serve(1, 1024 * 1024).values().iterator().next();
+        File file = downloader.submit(temp.newFolder(), new URL("http://files.example.com/file0"), null, null, -1);
+        downloader.call();
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(file));
+        assertTrue(transport.getRequestCount() > 2);
+    }
+
+    @Test(timeout = 60000)
+    public void testMeasuresLatencyOfSegments() throws Exception {
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setSegmentSize(1024);
+
+        transport.setLatency(50);
+        download(downloader, serve(40, 4 * 1024), false);
+
+        assertTrue(downloader.getConcurrency().getBaseLatency() >= 50 * 1000000);
+    }
+
+    /**
+     * Files that the server does not have must not lower the concurrency
+     * limit, including files downloaded in segments.
+     */
+    @Test(timeout = 60000)
+    public void testIgnoresMissingFilesForConcurrency() throws Exception {
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setFailFast(false);
+        downloader.setSegmentSize(1024);
+
+        File dir = temp.newFolder();
+        for (int i = 0; i < 100; i++) {
+            URL url = new URL("http://files.example.com/missing" + i);
+            transport.serve(url.toString(), new byte[4096]).code(404).latency(100);
+            downloader.submit(dir, url, null, null, 4096);
+        }
+
+        try {
+            downloader.call();
+            fail("The missing files did not fail the download");
+        } catch (Exception ignored) {
+        }
+
+        assertEquals(0, downloader.getConcurrency().getDecreases());
+    }
+
+    /**
+     * Files cancelled because a needed file failed are resumed by the next
+     * session.
+     */
+    @Test(timeout = 60000)
+    public void testResumesCancelledDownloads() throws Exception {
+        File dir = temp.newFolder();
+        Map<URL, byte[]> files = serve(4, 100 * 1024);
+        URL jar = new URL("http://files.example.com/game.jar");
+        transport.serve(jar.toString(), new byte[0]).code(404).latency(500);
+        transport.setBandwidth(256 * 1024);
+
+        HttpDownloader downloader = new HttpDownloader(executor);
+        downloader.setSegmentSize(64 * 1024);
+        for (Map.Entry<URL, byte[]> entry : files.entrySet()) {
+            downloader.submit(dir, entry.getKey(), null, null, entry.getValue().length);
+        }
+        downloader.submit(dir, jar, null, null, -1, DownloadPriority.CRITICAL);
+
+        final List<String> warnings = new ArrayList<String>();
+        Handler handler = new Handler() {
+            @Override
+            public synchronized void publish(LogRecord record) {
+                if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+                    warnings.add(record.getMessage());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = LauncherUtils.getLogger(HttpDownloader.class);
+        logger.addHandler(handler);
+        try {
+            downloader.call();
+            fail("The missing jar did not fail the download");
+        } catch (Exception ignored) {
+            // The cancelled attempts wind down after the downloader returns
+            Thread.sleep(1000);
+        } finally {
+            logger.removeHandler(handler);
+        }
+
+        // Only the jar is reported as failed, not the files cancelled for it
+        synchronized (handler) {
+            for (String warning : warnings) {
+                assertFalse(warning, warning.startsWith("Failed to download") && !warning.endsWith(jar.toString()));
+            }
+        }
+
+        executor = Executors.newFixedThreadPool(HttpDownloader.getDefaultMaxConcurrency());
+        transport.setBandwidth(0);
+        downloader = new HttpDownloader(executor);
+        downloader.setSegmentSize(64 * 1024);
+        download(downloader, dir, files, true);
+
+        // Little of what the first session read is read again
+        long total = 0;
+        for (byte[] body : files.values()) {
+            total += body.length;
+        }
+        assertTrue(transport.getByteCount() < total + total / 10);
+    }
+
+    /**
+     * Retries must not wait for a slot on a thread of the executor, or the
+     * slots can all go to files that have no thread left to run on.
+     */
+    @Test(timeout = 120000)
+    public void testProgressesOnFlakyLink() throws Exception {
+        for (boolean largestFirst : new boolean[] { true, false }) {
+            HttpDownloader downloader = new HttpDownloader(executor);
+            downloader.setFailFast(false);
+            downloader.setLargestFirst(largestFirst);
+            downloader.setRetryPolicy(new RetryPolicy(10, 100, 20, 1, 1000));
+
+            transport = new FakeHttpTransport(largestFirst ? 2 : 3);
+            transport.setFailureRate(0.3);
+            HttpRequest.setDefaultTransport(transport);
+
+            download(downloader, serve(300, 4 * 1024), false);
+            assertEquals(0, downloader.getConcurrency().getInFlight());
+
+            executor = Executors.newFixedThreadPool(HttpDownloader.getDefaultMaxConcurrency());
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.skmcl.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestTest {
+
+    /**
+     * A request aborted while its connection is still being opened must
+     * close the response once it arrives, or the connection is leaked.
+     */
+    @Test(timeout = 10000)
+    public void testClosesResponseOpenedAfterAbort() throws Exception {
+        final CountDownLatch opening = new CountDownLatch(1);
+        final CountDownLatch aborted = new CountDownLatch(1);
+        final AtomicInteger closed = new AtomicInteger();
+
+        HttpTransport transport = new HttpTransport() {
+            @Override
+            public Response open(HttpRequest request) throws IOException {
+                opening.countDown();
+                try {
+                    aborted.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+
+                return new Response() {
+                    @Override
+                    public int getResponseCode() {
+                        return 200;
+                    }
+
+                    @Override
+                    public String getHeaderField(String name) {
+                        return null;
+                    }
+
+                    @Override
+                    public InputStream getBody() {
+                        return new ByteArrayInputStream(new byte[10]);
+                    }
+
+                    @Override
+                    public void close(boolean abort) {
+                        closed.incrementAndGet();
+                    }
+                };
+            }
+        };
+
+        final HttpRequest request = HttpRequest.get(new URL("http://files.example.com/file")).transport(transport);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    opening.await();
+                } catch (InterruptedException ignored) {
+                }
+                request.abort();
+                aborted.countDown();
+            }
+        });
+        thread.start();
+
+        try {
+            request.execute();
+            fail("The aborted request was carried out");
+        } catch (InterruptedIOException ignored) {
+        }
+
+        thread.join();
+        assertEquals(1, closed.get());
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.skmcl.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MirrorListTest {
+
+    private MirrorList list;
+
+    @Before
+    public void setUp() {
+        list = new MirrorList(new MirrorList.Stats());
+        list.addResourceClass("libraries", "http://origin.test/libraries/");
+    }
+
+    private void setMirrors(String... bases) {
+        Map<String, List<String>> config = Collections.singletonMap("libraries", Arrays.asList(bases));
+        list.setMirrors(config);
+    }
+
+    @Test
+    public void testUsesOriginAfterMirrors() throws Exception {
+        setMirrors("http://a.mirror.test/libs/", "http://b.mirror.test/libs");
+
+        URL url = new URL("http://origin.test/libraries/lib.jar");
+        assertEquals(Arrays.asList(
+                new URL("http://a.mirror.test/libs/lib.jar"),
+                new URL("http://b.mirror.test/libs/lib.jar"),
+                url), list.getCandidates(url, -1));
+    }
+
+    @Test
+    public void testRanksListedOriginWithMirrors() throws Exception {
+        setMirrors("http://origin.test/libraries", "http://c.mirror.test/libs/");
+
+        URL url = new URL("http://origin.test/libraries/lib.jar");
+        assertEquals(Arrays.asList(
+                url,
+                new URL("http://c.mirror.test/libs/lib.jar")), list.getCandidates(url, -1));
+    }
+
+    @Test
+    public void testLeavesOtherURLsAlone() throws Exception {
+        setMirrors("http://d.mirror.test/libs/");
+
+        URL url = new URL("http://other.test/lib.jar");
+        assertEquals(Collections.singletonList(url), list.getCandidates(url, -1));
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * SK's Minecraft Launcher
+ * Copyright (C) 2010, 2011 Albert Pham <http://www.sk89q.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package com.sk89q.skmcl.util;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class SegmentedDownloadTest {
+
+    private static final int SEGMENT_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final FakeHttpTransport transport = new FakeHttpTransport(1);
+    private ExecutorService executor;
+    private URL url;
+
+    @BeforeClass
+    public static void loadLocale() {
+        SharedLocale.loadBundle("lang.Launcher", Locale.getDefault());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        url = new URL("http://files.example.com/file");
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private byte[] serve(int size, long seed) {
+        byte[] body = new byte[size];
+        new Random(seed).nextBytes(body);
+        transport.serve(url.toString(), body).etag("\"" + DigestUtils.md5Hex(body) + "\"");
+        return body;
+    }
+
+    private SegmentedDownload create(File file, String checksum) {
+        return new SegmentedDownload(file, executor, SEGMENT_SIZE, 4, checksum) {
+            @Override
+            protected HttpRequest createRequest() {
+                return HttpRequest.get(url).transport(transport);
+            }
+        };
+    }
+
+    /**
+     * Start a download on another thread and interrupt it once the given
+     * number of bytes has been saved, as when the launcher is closed.
+     */
+    private void interruptAfter(final SegmentedDownload download, long bytes) throws Exception {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download.download();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        thread.start();
+
+        while (download.getReceivedBytes() < bytes && thread.isAlive()) {
+            Thread.sleep(10);
+        }
+
+        assertTrue("The download finished before it could be interrupted", thread.isAlive());
+        thread.interrupt();
+        thread.join();
+    }
+
+    @Test(timeout = 60000)
+    public void testResumesInLaterSession() throws Exception {
+        byte[] body = serve(1024 * 1024, 1);
+        File file = new File(temp.getRoot(), "file.tmpdownload");
+
+        transport.setBandwidth(256 * 1024);
+        interruptAfter(create(file, null), body.length / 4);
+        assertTrue(SegmentedDownload.canResume(file));
+
+        transport.setBandwidth(0);
+        SegmentedDownload download = create(file, DigestUtils.md5Hex(body));
+        download.download();
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(file));
+        assertTrue(download.getTransferredBytes() <= body.length - body.length / 4);
+        assertFalse(SegmentedDownload.canResume(file));
+    }
+
+    @Test(timeout = 60000)
+    public void testStartsOverIfChanged() throws Exception {
+        serve(1024 * 1024, 1);
+        File file = new File(temp.getRoot(), "file.tmpdownload");
+
+        transport.setBandwidth(256 * 1024);
+        interruptAfter(create(file, null), 256 * 1024);
+
+        transport.setBandwidth(0);
+        byte[] body = serve(1024 * 1024, 2);
+        SegmentedDownload download = create(file, DigestUtils.md5Hex(body));
+
+        try {
+            download.download();
+            fail("The segments of two different files were stitched together");
+        } catch (IOException ignored) {
+        }
+
+        download.download();
+        assertArrayEquals(body, FileUtils.readFileToByteArray(file));
+    }
+
+    @Test(timeout = 60000)
+    public void testAddsConnectionsWhileFaster() throws Exception {
+        byte[] body = serve(2 * 1024 * 1024, 1);
+        File file = new File(temp.getRoot(), "file.tmpdownload");
+
+        transport.setBandwidth(256 * 1024);
+        SegmentedDownload download = create(file, null);
+        download.download();
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(file));
+        assertEquals(4, download.getPeakConnections());
+    }
+
+    @Test(timeout = 60000)
+    public void testKeepsConnectionsOnFullLink() throws Exception {
+        byte[] body = serve(1024 * 1024, 1);
+        File file = new File(temp.getRoot(), "file.tmpdownload");
+
+        transport.setLinkBandwidth(512 * 1024);
+        SegmentedDownload download = create(file, null);
+        download.download();
+
+        assertArrayEquals(body, FileUtils.readFileToByteArray(file));
+        assertTrue(download.getPeakConnections() < 4);
+    }
+
+}